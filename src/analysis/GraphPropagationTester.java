@@ -117,6 +117,7 @@ public class GraphPropagationTester {
 	}
 	
 	private static void runTester() {
+		SparseSimilarityGraph.CSRView csr = graph.getCSRView(null);
 		double prevNonSmoothness = 0;
 		double prevTime = 1.0 * System.currentTimeMillis() / 1000;
 		
@@ -127,14 +128,14 @@ public class GraphPropagationTester {
 			double eta = stepSize / (1.0 + Math.sqrt(iter));
 			
 			for (int i = 0; i < numNodes; i++) {
-				if (fixed[i] == 0 && graph.edges[i].size() > 0) {
+				if (fixed[i] == 0 && csr.rowStart[i + 1] > csr.rowStart[i]) {
 					for (int j = 0; j < numLabels; j++) {
 						Q[next][i][j] = Q[curr][i][j];
 					}
 				}
-				for (int j = 0; j < graph.edges[i].size(); j++) {
-					int e = graph.edges[i].get(j);
-					double w = graph.weights[i].get(j);
+				for (int j = csr.rowStart[i]; j < csr.rowStart[i + 1]; j++) {
+					int e = csr.col[j];
+					double w = csr.weight[j];
 					if (w > 0) {
 						for (int k = 0; k < numLabels; k++) {
 							double grad = Q[curr][i][k] - Q[curr][e][k];
@@ -31,6 +31,12 @@ public class Config {
 	@Option(name = "-estep-backoff", usage="")
 	public double estepBackoff = 1e-8;
 	
+	@Option(name = "-expectation-cutoff", usage="")
+	public double expectationCutoff = 0;
+	
+	@Option(name = "-scaled-marginals", usage="")
+	public boolean scaledMarginals;
+	
 	@Option(name = "-num-em-iters", usage="")
 	public int numEMIters = 1;
 	
@@ -58,6 +64,9 @@ public class Config {
 	@Option(name = "-estep-init", usage="")
 	public double estepInit = 1.0;
 
+	@Option(name = "-estep-float", usage="")
+	public boolean estepFloat;
+
 	@Option(name = "-seed-folder", usage="")
 	public int seedFolder = 0;
 	
@@ -73,6 +82,18 @@ public class Config {
 	@Option(name = "-random-seed", usage="")
 	public int randomSeed = 12345;
 	
+	@Option(name = "-model-path", usage="")
+	public String modelPath = "";
+	
+	@Option(name = "-checkpoint-path", usage="")
+	public String checkpointPath = "";
+	
+	@Option(name = "-resume-path", usage="")
+	public String resumePath = "";
+	
+	@Option(name = "-viterbi", usage="")
+	public boolean viterbiDecoding;
+	
 	public Config() {
 	}
 	
@@ -87,6 +108,8 @@ public class Config {
 		ostr.println("-gaussian-prior\t" + gaussianPrior);
 		ostr.println("-backoff\t" + backoff);
 		ostr.println("-estep-backoff\t" + estepBackoff);
+		ostr.println("-expectation-cutoff\t" + expectationCutoff);
+		ostr.println("-scaled-marginals\t" + scaledMarginals);
 		ostr.println("-num-em-iters\t" + numEMIters);
 		ostr.println("-num-estep-iters\t" + numEstepIters);
 		ostr.println("-num-mstep-iters\t" + numMstepIters);
@@ -95,10 +118,15 @@ public class Config {
 		ostr.println("-mstep-stop-threshold\t" + mstepStopThreshold);
 		ostr.println("-eta0\t" + initialLearningRate);
 		ostr.println("-estep-uniform-init\t" + estepInit);
+		ostr.println("-estep-float\t" + estepFloat);
 		ostr.println("-seed-folder\t" + seedFolder);
 		ostr.println("-scale-features\t" + scaleFeatures);
 		ostr.println("-num-cv-folds\t" + numSampleFolds);
 		ostr.println("-sample-fold-id\t" + sampleFoldID);
 		ostr.println("-random-seed\t" + randomSeed);
+		ostr.println("-model-path\t" + modelPath);
+		ostr.println("-checkpoint-path\t" + checkpointPath);
+		ostr.println("-resume-path\t" + resumePath);
+		ostr.println("-viterbi\t" + viterbiDecoding);
 	}
 }
@@ -22,6 +22,24 @@ public class PosGraphConfig extends PosConfig {
 	@Option(name = "-min-sim", usage="")
 	public double minSimilarity = 0.00;
 	
+	@Option(name = "-knn-method", usage="exact, lsh or brute")
+	public String knnMethod = "exact";
+	
+	@Option(name = "-knn-prune", usage="")
+	public double knnPruneBound = 0;
+	
+	@Option(name = "-lsh-tables", usage="")
+	public int lshTables = 20;
+	
+	@Option(name = "-lsh-bits", usage="")
+	public int lshBits = 12;
+	
+	@Option(name = "-lsh-refine-iters", usage="")
+	public int lshRefineIters = 5;
+	
+	@Option(name = "-knn-recall-sample", usage="")
+	public int knnRecallSample = 0;
+	
 	public PosGraphConfig(String[] args) {
 		super(args);
 		CmdLineParser parser = new CmdLineParser(this);
@@ -31,6 +49,13 @@ public class PosGraphConfig extends PosConfig {
 		} catch (CmdLineException e) {
 			e.printStackTrace();
 		}
+		if (!knnMethod.equals("exact") && !knnMethod.equals("lsh") &&
+				!knnMethod.equals("brute")) {
+			System.err.println("Unknown -knn-method " + knnMethod + ".");
+			parser.printUsage(System.err);
+			throw new IllegalArgumentException("-knn-method must be exact, " +
+					"lsh or brute.");
+		}
 	}
 
 	public void print(PrintStream ostr) {
@@ -38,6 +63,12 @@ public class PosGraphConfig extends PosConfig {
 		ostr.println("-context-path\t" + contextSize);
 		ostr.println("-mutual\t" + mutualKNN);
 		ostr.println("-min-sim\t" + minSimilarity);
+		ostr.println("-knn-method\t" + knnMethod);
+		ostr.println("-knn-prune\t" + knnPruneBound);
+		ostr.println("-lsh-tables\t" + lshTables);
+		ostr.println("-lsh-bits\t" + lshBits);
+		ostr.println("-lsh-refine-iters\t" + lshRefineIters);
+		ostr.println("-knn-recall-sample\t" + knnRecallSample);
 		super.print(ostr);
 	}
 }
@@ -0,0 +1,139 @@
+package constraints;
+
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import models.AbstractFactorIterator;
+import data.AbstractCorpus;
+import data.AbstractSequence;
+import data.Checkpoint;
+
+/**
+ * Flat storage for the per-token E-step values (node scores and marginals)
+ * of a set of sentences. Only the states that fiter allows are stored: the
+ * value of state fiter.states(sid, i)[k] at position i (0 to length, the
+ * last one holding the final state) of sentence sid is entry
+ * offset(sid, i) + k of each Values array.
+ *
+ * Sentences that are not stored, such as labeled ones, have no entries.
+ */
+public class EStepStore
+{
+	public final int size;
+	final int[] sentenceStart; // first position of each sentence, -1 if not stored
+	final int[] positionStart; // first entry of each position
+	final boolean singlePrecision;
+
+	public EStepStore(AbstractCorpus corpus, AbstractFactorIterator fiter,
+			int[] sentences, boolean singlePrecision)
+	{
+		this.singlePrecision = singlePrecision;
+		sentenceStart = new int[corpus.numInstances];
+		Arrays.fill(sentenceStart, -1);
+		int numPositions = 0;
+		for(int sid : sentences) {
+			sentenceStart[sid] = numPositions;
+			numPositions += corpus.getInstance(sid).length + 1;
+		}
+		positionStart = new int[numPositions + 1];
+		long numEntries = 0;
+		for(int sid : sentences) {
+			AbstractSequence instance = corpus.getInstance(sid);
+			for(int i = 0; i <= instance.length; i++) {
+				positionStart[sentenceStart[sid] + i] = (int) numEntries;
+				numEntries += fiter.states(sid, i).length;
+				if(numEntries > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Too many token states " +
+							"for the E-step store: " + numEntries);
+				}
+			}
+		}
+		positionStart[numPositions] = (int) numEntries;
+		size = (int) numEntries;
+		System.out.println(String.format("E-step store:\t%d positions\t" +
+				"%d entries\t%s", numPositions, size,
+				singlePrecision ? "float" : "double"));
+	}
+
+	public boolean contains(int sid)
+	{
+		return sentenceStart[sid] >= 0;
+	}
+
+	/** Entry of the first state fiter allows at position i of sentence sid. */
+	public int offset(int sid, int i)
+	{
+		return positionStart[sentenceStart[sid] + i];
+	}
+
+	public Values newValues()
+	{
+		return new Values(size, singlePrecision);
+	}
+
+	/** One value per entry, in doubles or, to halve the memory, floats. */
+	public static class Values
+	{
+		final double[] doubles;
+		final float[] floats;
+
+		Values(int size, boolean singlePrecision)
+		{
+			doubles = singlePrecision ? null : new double[size];
+			floats = singlePrecision ? new float[size] : null;
+		}
+
+		public double get(int k)
+		{
+			return doubles != null ? doubles[k] : floats[k];
+		}
+
+		public void set(int k, double value)
+		{
+			if(doubles != null) {
+				doubles[k] = value;
+			}
+			else {
+				floats[k] = (float) value;
+			}
+		}
+
+		public double[] toArray()
+		{
+			if(doubles != null) {
+				return doubles;
+			}
+			double[] values = new double[floats.length];
+			for(int k = 0; k < floats.length; k++) {
+				values[k] = floats[k];
+			}
+			return values;
+		}
+
+		/**
+		 * Reads a double section written from toArray(), a chunk at a time.
+		 * The section must hold exactly one value per entry.
+		 */
+		public void read(Checkpoint checkpoint, String name) throws IOException
+		{
+			int size = (doubles != null ? doubles.length : floats.length);
+			if(checkpoint.getLength(name) != 8L * size) {
+				throw new IOException(String.format("Section %s has %d values, " +
+						"the E-step store has %d entries.", name,
+						checkpoint.getLength(name) / 8, size));
+			}
+			if(doubles != null) {
+				checkpoint.readDoubles(name, doubles);
+				return;
+			}
+			for(int start = 0; start < floats.length; start += Checkpoint.chunkSize) {
+				int count = Math.min(Checkpoint.chunkSize, floats.length - start);
+				DoubleBuffer chunk = checkpoint.getDoubles(name, start, count);
+				for(int k = 0; k < count; k++) {
+					floats[start + k] = (float) chunk.get(k);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package constraints;
+
+import data.SparseSimilarityGraph;
+import parallel.RangeScheduler;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
+
+/**
+ * Graph term of the E-step objective,
+ *
+ *   sum_i sum_{j in N(i)} w_ij sum_k q_i(k) (q_i(k) - q_j(k)),
+ *
+ * where q_i is the tag distribution (nodeDist) of node i. This is the sum
+ * over token occurrences of i of w_ij / freq(i) (...), computed once per
+ * node instead of once per occurrence.
+ *
+ * update() is split across the worker pool in chunks of nodes. The chunk
+ * sums are added in chunk order, so the result does not depend on the
+ * thread schedule.
+ */
+public class GraphViolation
+{
+	static final int chunkSize = 1024;
+
+	SparseSimilarityGraph.CSRView graph;
+	double[][] nodeDist;
+	double[] chunkViolation;
+
+	WorkerPool pool;
+	RangeScheduler scheduler;
+	NodeWorker[] workers;
+	WorkerLoad load;
+
+	public GraphViolation(SparseSimilarityGraph graph, double[][] nodeDist,
+			WorkerPool pool, int numThreads)
+	{
+		this.graph = graph.getCSRView(null);
+		this.nodeDist = nodeDist;
+		this.pool = pool;
+		scheduler = new RangeScheduler(nodeDist.length, chunkSize);
+		chunkViolation = new double[scheduler.numChunks];
+		workers = new NodeWorker[numThreads];
+		for(int i = 0; i < numThreads; i++) {
+			workers[i] = new NodeWorker();
+		}
+		load = new WorkerLoad("estep-graph");
+	}
+
+	/** Returns the graph violation for the current nodeDist. */
+	public double update() throws InterruptedException
+	{
+		scheduler.reset();
+		pool.runAll(workers, load);
+		double gv = 0;
+		for(double v : chunkViolation) {
+			gv += v;
+		}
+		return gv;
+	}
+
+	public void printLoad()
+	{
+		load.print();
+		load.clear();
+	}
+
+	private double computeNodeViolation(int i)
+	{
+		double[] qi = nodeDist[i];
+		double gv = 0;
+		for(int j = graph.rowStart[i]; j < graph.rowStart[i + 1]; j++) {
+			double[] qj = nodeDist[graph.col[j]];
+			double v = 0;
+			for(int k = 0; k < qi.length; k++) {
+				v += qi[k] * (qi[k] - qj[k]);
+			}
+			gv += graph.weight[j] * v;
+		}
+		return gv;
+	}
+
+	class NodeWorker implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			for(int c; (c = scheduler.next()) >= 0; ) {
+				double gv = 0;
+				for(int i = scheduler.start(c); i < scheduler.end(c); i++) {
+					gv += computeNodeViolation(i);
+				}
+				chunkViolation[c] = gv;
+			}
+		}
+	}
+}
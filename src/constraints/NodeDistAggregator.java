@@ -0,0 +1,126 @@
+package constraints;
+
+import java.util.Arrays;
+
+import models.AbstractFactorIterator;
+import parallel.RangeScheduler;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
+import data.AbstractCorpus;
+import data.AbstractSequence;
+
+/**
+ * Averages the token marginals of every node into nodeDist, on the worker
+ * pool. Marginals of sentences in the E-step store are read from it, those
+ * of labeled sentences are one-hot on the gold tag. The token occurrences
+ * of each node are indexed once, in sentence order, so a worker owns a
+ * chunk of nodes and writes only their rows, and every row is summed in the
+ * same order as a serial pass over the corpus.
+ */
+public class NodeDistAggregator
+{
+	static final int chunkSize = 256;
+
+	AbstractCorpus corpus;
+	AbstractFactorIterator fiter;
+	EStepStore store;
+	EStepStore.Values nodeMarginal;
+	double[][] nodeDist;
+	double[] nodeFreq;
+	int[] occStart, occSentence, occPosition; // occurrences of node i are
+	                                          // [occStart[i], occStart[i+1])
+
+	WorkerPool pool;
+	RangeScheduler scheduler;
+	NodeWorker[] workers;
+	WorkerLoad load;
+
+	public NodeDistAggregator(AbstractCorpus corpus, AbstractFactorIterator fiter,
+			EStepStore store, EStepStore.Values nodeMarginal, double[][] nodeDist,
+			double[] nodeFreq, WorkerPool pool, int numThreads)
+	{
+		this.corpus = corpus;
+		this.fiter = fiter;
+		this.store = store;
+		this.nodeMarginal = nodeMarginal;
+		this.nodeDist = nodeDist;
+		this.nodeFreq = nodeFreq;
+		this.pool = pool;
+
+		int numNodes = nodeDist.length;
+		occStart = new int[numNodes + 1];
+		for(int sid = 0; sid < corpus.numInstances; sid++) {
+			for(int nid : corpus.getInstance(sid).nodes) {
+				if(nid >= 0) occStart[nid + 1] ++;
+			}
+		}
+		for(int nid = 0; nid < numNodes; nid++) {
+			occStart[nid + 1] += occStart[nid];
+		}
+		occSentence = new int[occStart[numNodes]];
+		occPosition = new int[occStart[numNodes]];
+		int[] fill = Arrays.copyOf(occStart, numNodes);
+		for(int sid = 0; sid < corpus.numInstances; sid++) {
+			AbstractSequence instance = corpus.getInstance(sid);
+			for(int i = 0; i < instance.length; i++) {
+				int nid = instance.nodes[i];
+				if(nid >= 0) {
+					occSentence[fill[nid]] = sid;
+					occPosition[fill[nid]] = i;
+					fill[nid] ++;
+				}
+			}
+		}
+
+		scheduler = new RangeScheduler(numNodes, chunkSize);
+		workers = new NodeWorker[numThreads];
+		for(int i = 0; i < numThreads; i++) {
+			workers[i] = new NodeWorker();
+		}
+		load = new WorkerLoad("estep-node-dist");
+	}
+
+	public void update() throws InterruptedException
+	{
+		scheduler.reset();
+		pool.runAll(workers, load);
+	}
+
+	public void printLoad()
+	{
+		load.print();
+		load.clear();
+	}
+
+	class NodeWorker implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			for(int c; (c = scheduler.next()) >= 0; ) {
+				for(int nid = scheduler.start(c); nid < scheduler.end(c); nid++) {
+					double[] dist = nodeDist[nid];
+					Arrays.fill(dist, 0);
+					for(int k = occStart[nid]; k < occStart[nid + 1]; k++) {
+						int sid = occSentence[k], i = occPosition[k];
+						int[] states = fiter.states(sid, i);
+						if(store.contains(sid)) {
+							int offset = store.offset(sid, i);
+							for(int j = 0; j < states.length; j++)
+								dist[states[j]] += nodeMarginal.get(offset + j);
+						}
+						else if(corpus.getInstance(sid).isLabeled) {
+							int tag = corpus.getInstance(sid).tags[i];
+							for(int s : states)
+								if(s == tag) dist[s] += 1;
+						}
+					}
+					if(nodeFreq[nid] > 0) {
+						for(int s = 0; s < dist.length; s++)
+							dist[s] /= nodeFreq[nid];
+					}
+				}
+			}
+		}
+	}
+}
@@ -18,17 +18,17 @@ public class SecondOrderEGDMonitor extends FirstOrderEGDMonitor {
 	{
 		int sid = instance.seqID;
 		int length = instance.length;
-		double[] q = new double[model.nodeMarginal[0].length];
+		double[] q = new double[model.getNumStates()];
 		
 		for(int i = 0; i < length; i++) {
 			for(int s : fiter.states(sid, i)) {
-				nsrange[0] = Math.min(nsrange[0], model.nodeScore[i][s]);
-				nsrange[1] = Math.max(nsrange[1], model.nodeScore[i][s]);
+				nsrange[0] = Math.min(nsrange[0], model.getNodeScore(i, s));
+				nsrange[1] = Math.max(nsrange[1], model.getNodeScore(i, s));
 				
 				for(int sp : fiter.states(sid, i-1))
 					for(int spp : fiter.states(sid, i-2)) {
-						esrange[0] = Math.min(esrange[0], model.edgeScore[i][s][sp][spp]);
-						esrange[1] = Math.max(esrange[1], model.edgeScore[i][s][sp][spp]);
+						esrange[0] = Math.min(esrange[0], model.getEdgeScore(i, s, sp, spp));
+						esrange[1] = Math.max(esrange[1], model.getEdgeScore(i, s, sp, spp));
 					}
 			}
 		}
@@ -36,7 +36,7 @@ public class SecondOrderEGDMonitor extends FirstOrderEGDMonitor {
 		for(int i = 0; i < length; i++) {
 			int best = -1;
 			for(int s : fiter.states(sid, i)) {
-				q[s] = Math.exp(model.nodeMarginal[i][s]);
+				q[s] = model.getNodeProbability(i, s);
 				if(best < 0 || q[best] < q[s]) 
 					best = s;
 			}
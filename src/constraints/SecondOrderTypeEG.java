@@ -1,29 +1,39 @@
 package constraints;
 
+import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
 import models.AbstractFactorIterator;
 import models.SecondOrderFactorGraph;
 import config.Config;
 import data.AbstractCorpus;
 import data.AbstractSequence;
+import data.Checkpoint;
 import data.SparseSimilarityGraph;
+import features.ScoreCache;
 import features.SecondOrderPotentialFunction;
-import gnu.trove.TIntArrayList;
+import parallel.SentenceScheduler;
+import parallel.SparseAccumulator;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
 
 public class SecondOrderTypeEG {
-	double[][][] nodeMarginal, nodeScore, mstepNodeScore;
+	EStepStore store; // unlabeled sentences only
+	EStepStore.Values nodeMarginal, nodeScore, mstepNodeScore;
 	double[] theta, primalVars;
+	ScoreCache thetaCache, primalCache;
 	
 	double[][] nodeDist; // node-id x labels
 	double[] nodeFreq;
 	
 	int[][] decoded;
 	int[] unlabeled;
-	int[][] sentenceBatches;
+	SentenceScheduler scheduler;
 	int numUnlabeled;
 	
 	AbstractCorpus corpus;
 	SparseSimilarityGraph graph;
+	SparseSimilarityGraph.CSRView graphView; // weights divided by nodeFreq
 	SecondOrderPotentialFunction ffunc;
 	Config config;
 	AbstractFactorIterator fiter;
@@ -35,9 +45,15 @@ public class SecondOrderTypeEG {
 	int numNodes, numSequences, numStates, numFeatures;
 	int numThreads;
 	
-	SentenceUpdateThread[] uthreads;
-	SentenceMonitorThread[] mthreads;
-	EmpiricalCountThread[] ethreads;
+	WorkerPool pool;
+	SentenceUpdateWorker[] uworkers;
+	SentenceMonitorWorker[] mworkers;
+	NodeScoreWorker[] sworkers;
+	EmpiricalCountWorker[] eworkers;
+	SparseAccumulator[] localSoftEmpiricals;
+	NodeDistAggregator nodeDistAggregator;
+	GraphViolation graphViolation;
+	WorkerLoad updateLoad, monitorLoad, countLoad, scoreLoad;
 
 	public double lpStrength;
 	public double entropyObjective, likelihoodObjective, graphObjective,
@@ -65,6 +81,8 @@ public class SecondOrderTypeEG {
 		this.SN = corpus.finalState;
 		
 		this.numFeatures = ffunc.getNumFeatures();
+		this.thetaCache = ffunc.createScoreCache();
+		this.primalCache = ffunc.createScoreCache();
 		
 			
 		this.numThreads = config.numThreads;
@@ -81,9 +99,6 @@ public class SecondOrderTypeEG {
 		goldViolation = graph.computeGoldViolation(corpus);
 		System.out.println("Gold violation::\t" + goldViolation);
 		
-		nodeScore = new double[numSequences][][];
-		mstepNodeScore = new double[numSequences][][];
-		nodeMarginal = new double[numSequences][][];
 		decoded = new int[numSequences][];
 		nodeDist = new double[numNodes][numStates];
 		nodeFreq = new double[numNodes];
@@ -93,19 +108,31 @@ public class SecondOrderTypeEG {
 		unlabeled = corpus.tests;
 		numUnlabeled = unlabeled.length;
 		System.out.println("EG projection on " + numUnlabeled + " instances.");
-		
-		uthreads = new SentenceUpdateThread[numThreads];
-		mthreads = new SentenceMonitorThread[numThreads];
-		ethreads = new EmpiricalCountThread[numThreads];
-		sentenceBatches = new int[numThreads][];
-		
+		store = new EStepStore(corpus, fiter, unlabeled, config.estepFloat);
+		nodeScore = store.newValues();
+		mstepNodeScore = store.newValues();
+		nodeMarginal = store.newValues();
+		
+		scheduler = new SentenceScheduler(corpus, fiter, 2, unlabeled);
+		pool = WorkerPool.getSharedPool(numThreads);
+		updateLoad = new WorkerLoad("estep-update");
+		monitorLoad = new WorkerLoad("estep-marginals");
+		countLoad = new WorkerLoad("estep-counts");
+		scoreLoad = new WorkerLoad("estep-node-scores");
+		nodeDistAggregator = new NodeDistAggregator(corpus, fiter, store,
+				nodeMarginal, nodeDist, nodeFreq, pool, numThreads);
+		graphViolation = new GraphViolation(graph, nodeDist, pool, numThreads);
+		uworkers = new SentenceUpdateWorker[numThreads];
+		mworkers = new SentenceMonitorWorker[numThreads];
+		sworkers = new NodeScoreWorker[numThreads];
+		eworkers = new EmpiricalCountWorker[numThreads];
+		localSoftEmpiricals = new SparseAccumulator[numThreads];
 		for(int i = 0; i < numThreads; i++) {
-			int bsize = unlabeled.length / numThreads;
-			TIntArrayList sids = new TIntArrayList();
-			for(int j = i * bsize; j < (i + 1 < numThreads ? (i + 1) * bsize : unlabeled.length); j++) {
-				sids.add(unlabeled[j]);
-			}
-			sentenceBatches[i] = sids.toNativeArray();
+			uworkers[i] = new SentenceUpdateWorker();
+			mworkers[i] = new SentenceMonitorWorker();
+			sworkers[i] = new NodeScoreWorker();
+			localSoftEmpiricals[i] = new SparseAccumulator(numFeatures);
+			eworkers[i] = new EmpiricalCountWorker(localSoftEmpiricals[i]);
 		}
 		
 		this.stoppingCriteria = config.estepStopThreshold;
@@ -115,6 +142,7 @@ public class SecondOrderTypeEG {
 	public boolean project(double[] theta, double likelihood) throws InterruptedException
 	{	
 		this.theta = theta;
+		ffunc.cacheScores(thetaCache, theta);
 		
 		if(currIter == 0) {
 			System.out.println("Initializing E-step Constraint ...");
@@ -124,12 +152,10 @@ public class SecondOrderTypeEG {
 			prevObjective = Double.POSITIVE_INFINITY;
 			initializeCounts(theta);
 			
-			for(int i = 0; i < numThreads; i++) 
-				mthreads[i] = new SentenceMonitorThread(sentenceBatches[i]);
-			for(int i = 0; i < numThreads; i ++) mthreads[i].start();
-			for(int i = 0; i < numThreads; i ++) mthreads[i].join();
+			scheduler.reset();
+			pool.runAll(mworkers, monitorLoad);
 			
-			updateNodeDist();
+			nodeDistAggregator.update();
 			updateObjective();
 		}
 		else {
@@ -137,15 +163,7 @@ public class SecondOrderTypeEG {
 			prevObjective = likelihoodObjective - entropyObjective + lpStrength / 2 * graphObjective;
 			System.out.println(String.format("Resetting objective: %.4f -> %.4f", objective, prevObjective));
 			
-			SecondOrderFactorGraph model = new SecondOrderFactorGraph(corpus, ffunc, fiter);
-			for(int sid : unlabeled) {
-				AbstractSequence instance = corpus.getInstance(sid);
-				model.computeScores(instance, theta, config.backoff);	
-				for(int i = 0; i <= instance.length; i++)
-					for(int s : fiter.states(sid, i)) {
-						mstepNodeScore[sid][i][s] = model.nodeScore[i][s];
-					}
-			}
+			cacheNodeScores(false);
 			System.out.println("Cached node scores.");
 		}
 		
@@ -153,31 +171,27 @@ public class SecondOrderTypeEG {
 		
 		for(int iter = 0; iter < numIterations; iter ++) {
 			eta = eta0 / (1.0 + iter);
-			for(int i = 0; i < numThreads; i++) {
-				uthreads[i] = new SentenceUpdateThread(sentenceBatches[i]);
-				mthreads[i] = new SentenceMonitorThread(sentenceBatches[i]);
-			}
 		
 			/*** update dual variables ***/
-			for(int i = 0; i < numThreads;i ++) uthreads[i].start();
-			for(int i = 0; i < numThreads;i ++) uthreads[i].join();
+			scheduler.reset();
+			pool.runAll(uworkers, updateLoad);
 			
 			gradientNorm = 0;
 			for(int i = 0; i < numThreads;i ++) {
-				gradientNorm += uthreads[i].gradientNorm;
-				uthreads[i] = null;
+				gradientNorm += uworkers[i].gradientNorm;
 			}
 			
 			/*** update primal variables ***/
 			for(int i = 0; i < numFeatures; i++) { 
 				primalVars[i] = (1 - eta) * primalVars[i] + eta * theta[i];
 			}
+			ffunc.cacheEdgeScores(primalCache, primalVars);
 	
 			/*** update marginals  ***/
-			for(int i = 0; i < numThreads;i ++) mthreads[i].start();
-			for(int i = 0; i < numThreads;i ++) mthreads[i].join();
+			scheduler.reset();
+			pool.runAll(mworkers, monitorLoad);
 			
-			updateNodeDist();
+			nodeDistAggregator.update();
 			updateObjective(); 
 			
 			if(currIter > 0 && objective > prevObjective) {
@@ -197,79 +211,54 @@ public class SecondOrderTypeEG {
 		finalizeEStep();
 		
 		System.out.println("EDG Finished. succeed:\t" + succeed);
+		updateLoad.print();
+		updateLoad.clear();
+		monitorLoad.print();
+		monitorLoad.clear();
+		countLoad.print();
+		countLoad.clear();
+		scoreLoad.print();
+		scoreLoad.clear();
+		nodeDistAggregator.printLoad();
+		graphViolation.printLoad();
 		return succeed;
 	}
 	
 
-	private void initializeCounts(double[] theta)
+	private void initializeCounts(double[] theta) throws InterruptedException
 	{
-		SecondOrderFactorGraph model = new SecondOrderFactorGraph(corpus, ffunc, fiter);
 		Arrays.fill(nodeFreq, 0.0);
 		
 		for(int sid = 0; sid < numSequences; sid++) {
 			AbstractSequence instance = corpus.getInstance(sid);
 			int length = instance.length;
 			
-			nodeScore[sid] = new double[length + 1][corpus.numStates];
-			mstepNodeScore[sid] = new double[length + 1][corpus.numStates];
-			nodeMarginal[sid] = new double[length + 1][corpus.numStates];
 			decoded[sid] = new int[length]; 
 		
-			if(instance.isLabeled) {
-				for(int i = 0; i < length; i++)
-					for(int s : fiter.states(sid, i)) {
-						nodeMarginal[sid][i][s] = (s == instance.tags[i]) ? 1 : 0;
-					nodeMarginal[sid][length][SN] = 1;
-				}
-			}	
-			else {
-				model.computeScores(instance, theta, config.backoff);	
-				for(int i = 0; i <= length; i++)
-					for(int s : fiter.states(sid, i)) {
-						mstepNodeScore[sid][i][s] = model.nodeScore[i][s];
-						nodeScore[sid][i][s] = mstepNodeScore[sid][i][s];
-					}
-			}
-			
 			for(int nid : instance.nodes) {
 				if(nid >= 0) nodeFreq[nid] ++;
 			}
 		}
+		cacheNodeScores(true);
+		if(graphView == null) {
+			graphView = graph.getCSRView(nodeFreq);
+		}
 				
 		for(int i = 0; i < theta.length; i++) {
 			primalVars[i] = theta[i];
 		}
+		ffunc.cacheEdgeScores(primalCache, primalVars);
 	}
 	
-	private double computeGraphViolation()
-	{
-		double gv = 0;
-		for(int sid = 0; sid < numSequences; sid++) {
-			AbstractSequence instance = corpus.getInstance(sid);
-			for(int t = 0; t < instance.length; t++) {
-				int nid = instance.nodes[t];
-				if(nid < 0) continue;
-				for(int k = 0; k < numStates; k++) {
-					for(int j = 0; j < graph.edges[nid].size(); j++) {
-						int e = graph.edges[nid].get(j);
-						double w = graph.weights[nid].get(j) / nodeFreq[nid];
-						gv += w * nodeDist[nid][k] * (nodeDist[nid][k] - nodeDist[e][k]);
-					}
-				}
-			}
-		}
-		return gv;
-	}
-	
-	private void updateObjective()
+	private void updateObjective() throws InterruptedException
 	{
 		entropyObjective = 0;
 		likelihoodObjective = 0;
-		graphObjective = computeGraphViolation();
+		graphObjective = graphViolation.update();
 		
 		for(int i = 0; i < numThreads; i++) {
-			entropyObjective += mthreads[i].localEntropy;
-			likelihoodObjective += mthreads[i].localLikelihood;
+			entropyObjective += mworkers[i].localEntropy;
+			likelihoodObjective += mworkers[i].localLikelihood;
 		}
 		
 		objective = likelihoodObjective - entropyObjective + lpStrength / 2 * graphObjective;
@@ -291,16 +280,16 @@ public class SecondOrderTypeEG {
 		double acc = 0, norm = 0;
 		
 		for(int i = 0; i < numThreads; i++) { 
-			ethreads[i] = new EmpiricalCountThread(sentenceBatches[i], 
-				new SecondOrderEGDMonitor(corpus.numStates, fiter));
+			eworkers[i].monitor = new SecondOrderEGDMonitor(corpus.numStates, fiter);
 		}
-		for(int i = 0; i < numThreads;i ++) ethreads[i].start();
-		for(int i = 0; i < numThreads;i ++) ethreads[i].join();
+		scheduler.reset();
+		pool.runAll(eworkers, countLoad);
 		
 		Arrays.fill(softEmpiricalCounts, 0);
+		SparseAccumulator.reduce(localSoftEmpiricals, softEmpiricalCounts, pool);
 		
 		for(int i = 0; i < numThreads; i++) {
-			FirstOrderEGDMonitor monitor = ethreads[i].monitor;
+			FirstOrderEGDMonitor monitor = eworkers[i].monitor;
 			acc += monitor.numCorrect;
 			norm += monitor.numTotal;
 			avgent += monitor.avgent;
@@ -313,11 +302,6 @@ public class SecondOrderTypeEG {
 			maxns = Math.max(maxns, monitor.nsrange[1]);
 			mines = Math.min(mines, monitor.esrange[0]);
 			maxes = Math.max(maxes, monitor.esrange[1]);
-			
-			for(int j = 0; j < numFeatures; j++)
-				softEmpiricalCounts[j] += ethreads[i].localSoftEmpiricals[j];
-			
-			ethreads[i] = null;
 		}
 		
 		System.out.print(" ... finalizing e-step ... \t");
@@ -326,26 +310,70 @@ public class SecondOrderTypeEG {
 		System.out.println("edge score range::\t" + mines + " - " + maxes + "\tnode score range::\t" + minns + " - " + maxns);
 	}
 	
-	private void updateNodeDist()
+	/**
+	 * Adds the state needed to continue the E-step after a restart: the
+	 * iteration count and objectives, and once projection has started, the
+	 * node scores of unlabeled sentences, the primal variables and nodeDist.
+	 */
+	public void writeCheckpoint(Checkpoint.Writer writer) throws IOException
 	{
-		LatticeHelper.deepFill(nodeDist, 0);
-		for(int sid = 0; sid < corpus.numInstances; sid++) {
-			AbstractSequence instance = corpus.getInstance(sid);
-			for(int i = 0; i < instance.length; i++) {
-				int nid = instance.nodes[i];
-				if(nid >= 0)
-					for(int s : fiter.states(sid, i)) 
-						nodeDist[nid][s] += nodeMarginal[sid][i][s];
-			}
+		writer.writeDoubles("estep-state", new double[] { currIter,
+				entropyObjective, likelihoodObjective, graphObjective,
+				objective });
+		if(currIter == 0) {
+			return;
 		}
-		
-		for(int nid = 0; nid < numNodes; nid++) {
-			for(int s = 0; s < numStates; s++)
-				if(nodeFreq[nid] > 0) 
-					nodeDist[nid][s] /= nodeFreq[nid];
+		writer.writeDoubles("estep-token-scores", nodeScore.toArray());
+		writer.writeDoubles("estep-primal-vars", primalVars);
+		writer.writeDoubles("estep-node-dist", nodeDist);
+	}
+	
+	/**
+	 * Restores the state written by writeCheckpoint(). The per-sentence
+	 * arrays are re-allocated by initializeCounts() with the restored theta
+	 * and then overwritten, so the next project() call continues projecting
+	 * instead of starting over.
+	 */
+	public void readCheckpoint(Checkpoint checkpoint, double[] theta)
+			throws IOException, InterruptedException
+	{
+		if(!checkpoint.hasSection("estep-state")) {
+			return;
 		}
+		DoubleBuffer state = checkpoint.getDoubles("estep-state");
+		if((int) state.get(0) == 0) {
+			return;
+		}
+		ffunc.cacheScores(thetaCache, theta);
+		initializeCounts(theta);
+		currIter = (int) state.get(0);
+		entropyObjective = state.get(1);
+		likelihoodObjective = state.get(2);
+		graphObjective = state.get(3);
+		objective = state.get(4);
+		eta0 = config.initialLearningRate;
+		
+		nodeScore.read(checkpoint, "estep-token-scores");
+		checkpoint.readDoubles("estep-primal-vars", primalVars);
+		ffunc.cacheEdgeScores(primalCache, primalVars);
+		checkpoint.readDoubles("estep-node-dist", nodeDist);
+		System.out.println("Resumed E-step state of iteration " + currIter);
 	}
-
+	
+	/**
+	 * Refreshes mstepNodeScore of the unlabeled sentences from thetaCache,
+	 * and with resetDuals also starts nodeScore from them. Only node scores
+	 * are computed, on the worker pool.
+	 */
+	private void cacheNodeScores(boolean resetDuals) throws InterruptedException
+	{
+		for(NodeScoreWorker worker : sworkers) {
+			worker.resetDuals = resetDuals;
+		}
+		scheduler.reset();
+		pool.runAll(sworkers, scoreLoad);
+	}
+	
 	public void projectScores(AbstractSequence instance, SecondOrderFactorGraph model)
 	{
 		model.set(instance);
@@ -353,15 +381,18 @@ public class SecondOrderTypeEG {
 		int length = instance.length;
 		int sid = instance.seqID;
 		
-		for(int i = 0; i <= length; i++)
+		for(int i = 0; i <= length; i++) {
+			int offset = store.offset(sid, i);
+			int k = 0;
 			for(int s : fiter.states(sid, i)) {
-				model.nodeScore[i][s] = nodeScore[sid][i][s];
+				model.setNodeScore(i, s, nodeScore.get(offset + k++));
 				for(int sp : fiter.states(sid, i-1))
 					for(int spp : fiter.states(sid, i-2)) { 
-						model.edgeScore[i][s][sp][spp] =
-							ffunc.computeEdgeScore(instance.seqID, i, s, sp, spp, primalVars);
+						model.setEdgeScore(i, s, sp, spp,
+							primalCache.edgeScore(s, sp, spp));
 					}
 			}
+		}
 	}
 	
 	public int[] getDecoded(int sid) 
@@ -370,41 +401,70 @@ public class SecondOrderTypeEG {
 	}
 
 	
-	class SentenceUpdateThread extends Thread 
+	class NodeScoreWorker implements Runnable 
+	{
+		boolean resetDuals;
+		double[] scores = new double[corpus.numStates];
+		
+		@Override
+		public void run() {
+			for(int sid; (sid = scheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				int[] toks = instance.tokens;
+				for(int i = 0; i <= instance.length; i++) {
+					int[] states = fiter.states(sid, i);
+					int offset = store.offset(sid, i);
+					thetaCache.nodeScores(toks, i, scores);
+					for(int k = 0; k < states.length; k++) {
+						double score = config.backoff + scores[states[k]];
+						mstepNodeScore.set(offset + k, score);
+						if(resetDuals) {
+							nodeScore.set(offset + k, score);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	class SentenceUpdateWorker implements Runnable 
 	{
-		int[] sentenceIDs;
 		double gradientNorm;
 		
-		public SentenceUpdateThread(int[] sentenceIDs) {
-			this.sentenceIDs = sentenceIDs;
+		public SentenceUpdateWorker() {
 			this.gradientNorm = 0;
 		}
 		
-		@Override
 		public void run() {
 			double grad;
-			for(int sid : sentenceIDs) {
+			gradientNorm = 0;
+			for(int sid; (sid = scheduler.next()) >= 0; ) {
 				AbstractSequence instance = corpus.getInstance(sid);						
-				for(int i = 0; i <= instance.length; i++) 
-					for(int s : fiter.states(sid, i)) {
-						nodeScore[sid][i][s] -= eta * (grad = getNodeGradient(sid, i, s));
+				for(int i = 0; i <= instance.length; i++) {
+					int[] states = fiter.states(sid, i);
+					int offset = store.offset(sid, i);
+					for(int k = 0; k < states.length; k++) {
+						grad = getNodeGradient(sid, i, states[k], offset + k);
+						nodeScore.set(offset + k, nodeScore.get(offset + k) - eta * grad);
 						gradientNorm += grad * grad;
-					}			
+					}
+				}
 			}
 		}
 		
-		private double getNodeGradient(int sid, int i, int s)
+		private double getNodeGradient(int sid, int i, int s, int entry)
 		{
-			double gradA = nodeScore[sid][i][s] - mstepNodeScore[sid][i][s];
+			double gradA = nodeScore.get(entry) - mstepNodeScore.get(entry);
 			double gradB = 0;
 			
 			if(s != SN && s != S0 && s != S00) { 
 				int nid = corpus.getInstance(sid).nodes[i];
 				if(nid >= 0) {
-					for(int j = 0; j < graph.edges[nid].size(); j++) {
-						int e = graph.edges[nid].get(j);  
-						double w = graph.weights[nid].get(j) / nodeFreq[nid];
-						gradB += w * (nodeDist[nid][s] - nodeDist[e][s]);
+					int[] col = graphView.col;
+					double[] weight = graphView.weight;
+					double dist = nodeDist[nid][s];
+					for(int j = graphView.rowStart[nid]; j < graphView.rowStart[nid + 1]; j++) {
+						gradB += weight[j] * (dist - nodeDist[col[j]][s]);
 					}
 				}
 			}
@@ -413,17 +473,16 @@ public class SecondOrderTypeEG {
 		}
 	}
 	
-	class SentenceMonitorThread extends Thread 
+	class SentenceMonitorWorker implements Runnable 
 	{
-		int[] sentenceIDs;
-
 		SecondOrderFactorGraph model, projectedModel;
 		double localEntropy, localLikelihood;
 		
-		public SentenceMonitorThread(int[] sentenceIDs) {
-			this.sentenceIDs = sentenceIDs;
+		public SentenceMonitorWorker() {
 			this.model = new SecondOrderFactorGraph(corpus, ffunc, fiter);
+			this.model.scaledMarginals = config.scaledMarginals;
 			this.projectedModel = new SecondOrderFactorGraph(corpus, ffunc, fiter);
+			this.projectedModel.scaledMarginals = config.scaledMarginals;
 		}
 		
 		@Override
@@ -431,11 +490,11 @@ public class SecondOrderTypeEG {
 			localEntropy = 0;
 			localLikelihood = 0;
 			
-			for(int sid : sentenceIDs) {
+			for(int sid; (sid = scheduler.next()) >= 0; ) {
 				AbstractSequence instance = corpus.getInstance(sid);
 				double fmar;
 				
-				model.computeScores(instance, theta, config.backoff);
+				model.computeScores(instance, thetaCache, config.backoff);
 				model.computeMarginals();
 				
 				projectScores(instance, projectedModel);
@@ -444,40 +503,41 @@ public class SecondOrderTypeEG {
 				localEntropy += projectedModel.logNorm;
 				localLikelihood += model.logNorm;
 		
-				for(int i = 0; i <= instance.length; i++) 
+				for(int i = 0; i <= instance.length; i++) {
+					int offset = store.offset(sid, i);
+					int k = 0;
 					for(int s : fiter.states(sid, i)) { 
-						nodeMarginal[sid][i][s] = Math.exp(projectedModel.nodeMarginal[i][s]); // update marginal
+						nodeMarginal.set(offset + k++, projectedModel.getNodeProbability(i, s)); // update marginal
 						for(int sp : fiter.states(sid, i-1))
 							for(int spp : fiter.states(sid, i-2)) {
-								fmar = Math.exp(projectedModel.edgeMarginal[i][s][sp][spp]);
-								localEntropy -=  fmar * (projectedModel.edgeScore[i][s][sp][spp] + projectedModel.nodeScore[i][s]);
-								localLikelihood -= fmar * (model.edgeScore[i][s][sp][spp] + model.nodeScore[i][s]);
+								fmar = projectedModel.getEdgeProbability(i, s, sp, spp);
+								localEntropy -=  fmar * (projectedModel.getEdgeScore(i, s, sp, spp) + projectedModel.getNodeScore(i, s));
+								localLikelihood -= fmar * (model.getEdgeScore(i, s, sp, spp) + model.getNodeScore(i, s));
 							}
 					}
+				}
 				
 			}
 		}
 	}
 	
-	class EmpiricalCountThread extends Thread 
+	class EmpiricalCountWorker implements Runnable 
 	{
-		int[] sentenceIDs;
 		SecondOrderEGDMonitor monitor;
 		SecondOrderFactorGraph projectedModel;
-		double[] localSoftEmpiricals;
+		SparseAccumulator localSoftEmpiricals;
 		
-		public EmpiricalCountThread(int[] sentenceIDs, SecondOrderEGDMonitor monitor) {
-			this.sentenceIDs = sentenceIDs;
-			this.monitor = monitor;
+		public EmpiricalCountWorker(SparseAccumulator localSoftEmpiricals) {
 			this.projectedModel = new SecondOrderFactorGraph(corpus, ffunc, fiter);
-			localSoftEmpiricals = new double[numFeatures];
+			this.projectedModel.scaledMarginals = config.scaledMarginals;
+			this.localSoftEmpiricals = localSoftEmpiricals;
 		}
 		
 		@Override
 		public void run() {
-			Arrays.fill(localSoftEmpiricals, 0);
+			localSoftEmpiricals.clear();
 			
-			for(int sid : sentenceIDs) {
+			for(int sid; (sid = scheduler.next()) >= 0; ) {
 				AbstractSequence instance = corpus.getInstance(sid);
 				projectScores(instance, projectedModel);
 				projectedModel.computeMarginals();
@@ -0,0 +1,364 @@
+package data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import config.Config;
+
+/**
+ * Binary training checkpoint: a versioned container of named sections.
+ *
+ *   magic (8 bytes), version (int)
+ *   sections, each starting at an 8-byte aligned offset
+ *   table of contents: count, then (name, offset, length) per section
+ *   offset of the table of contents (long, last 8 bytes)
+ *
+ * String sections hold a count followed by length-prefixed UTF8 strings,
+ * double and long sections hold raw big-endian values. Offsets are longs,
+ * and sections are memory-mapped one at a time when read, so getDoubles()
+ * returns a view of the file and the parameter vector is only paged in as
+ * it is used. A single mapping holds at most 2 GB; larger sections are read
+ * a chunk at a time by readDoubles().
+ *
+ * The standard sections written by create() are "config" and "tags"; the
+ * potential functions add the model (see writeModel()) and trainers their
+ * own state.
+ */
+public class Checkpoint {
+	public static final int version = 1;
+	static final long magic = 0x7072672d636b7074L; // "prg-ckpt"
+	public static final int chunkSize = 1 << 24; // doubles mapped at a time
+
+	public final int fileVersion;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final HashMap<String, long[]> sections;
+
+	public Checkpoint(String path) throws IOException {
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		long size = file.length();
+		if (size < 20 || file.readLong() != magic) {
+			file.close();
+			throw new IOException(path + " is not a checkpoint file.");
+		}
+		fileVersion = file.readInt();
+		if (fileVersion > version) {
+			file.close();
+			throw new IOException(String.format("%s has version %d, " +
+					"only up to %d is supported.", path, fileVersion, version));
+		}
+		file.seek(size - 8);
+		long tocOffset = file.readLong();
+		ByteBuffer toc = channel.map(FileChannel.MapMode.READ_ONLY, tocOffset,
+				size - 8 - tocOffset);
+		sections = new HashMap<String, long[]>();
+		int numSections = toc.getInt();
+		for (int i = 0; i < numSections; i++) {
+			String name = readString(toc);
+			sections.put(name, new long[] { toc.getLong(), toc.getLong() });
+		}
+	}
+
+	/** Closes the file; buffers returned so far stay valid. */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public boolean hasSection(String name) {
+		return sections.containsKey(name);
+	}
+
+	/** Maps length bytes of a section, starting start bytes into it. */
+	private ByteBuffer map(String name, long start, long length)
+			throws IOException {
+		long[] range = sections.get(name);
+		if (range == null) {
+			throw new IOException("Checkpoint has no section " + name);
+		}
+		if (start < 0 || start + length > range[1]) {
+			throw new IOException(String.format("Bytes %d to %d are out of " +
+					"section %s of %d bytes.", start, start + length, name,
+					range[1]));
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException(String.format("Cannot map %d bytes of " +
+					"section %s at once.", length, name));
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, range[0] + start,
+				length);
+	}
+
+	private ByteBuffer getSection(String name) throws IOException {
+		return map(name, 0, getLength(name));
+	}
+
+	/** Length of a section in bytes. */
+	public long getLength(String name) throws IOException {
+		long[] range = sections.get(name);
+		if (range == null) {
+			throw new IOException("Checkpoint has no section " + name);
+		}
+		return range[1];
+	}
+
+	/** Returns a read-only view of a double section backed by the file. */
+	public DoubleBuffer getDoubles(String name) throws IOException {
+		return getSection(name).asDoubleBuffer();
+	}
+
+	/** Returns a view of count values of a double section from start on. */
+	public DoubleBuffer getDoubles(String name, long start, int count)
+			throws IOException {
+		return map(name, start * 8, count * 8L).asDoubleBuffer();
+	}
+
+	public LongBuffer getLongs(String name) throws IOException {
+		return getSection(name).asLongBuffer();
+	}
+
+	public String[] getStrings(String name) throws IOException {
+		ByteBuffer section = getSection(name);
+		String[] values = new String[section.getInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = readString(section);
+		}
+		return values;
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, "UTF8");
+	}
+
+	public void readDoubles(String name, double[] values) throws IOException {
+		readDoubles(name, new double[][] { values });
+	}
+
+	/**
+	 * Copies a double section into rows, as written by
+	 * Writer.writeDoubles(name, rows), a chunk at a time. The section must
+	 * hold exactly as many values as the rows.
+	 */
+	public void readDoubles(String name, double[][] rows) throws IOException {
+		long size = 0;
+		for (double[] row : rows) {
+			size += row.length;
+		}
+		if (getLength(name) != size * 8) {
+			throw new IOException(String.format("Section %s has %d values, " +
+					"expected %d.", name, getLength(name) / 8, size));
+		}
+		DoubleBuffer chunk = DoubleBuffer.allocate(0);
+		long next = 0;
+		for (double[] row : rows) {
+			for (int k = 0; k < row.length; ) {
+				if (!chunk.hasRemaining()) {
+					int count = (int) Math.min(chunkSize, size - next);
+					chunk = getDoubles(name, next, count);
+					next += count;
+				}
+				int n = Math.min(row.length - k, chunk.remaining());
+				chunk.get(row, k, n);
+				k += n;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the checkpoint was written for the same state alphabet as
+	 * corpus.
+	 */
+	public void checkTags(AbstractCorpus corpus) throws IOException {
+		String[] tags = getStrings("tags");
+		boolean match = (tags.length == corpus.numStates);
+		for (int i = 0; match && i < tags.length; i++) {
+			match = tags[i].equals(corpus.getTag(i));
+		}
+		if (!match) {
+			throw new IOException("Tags of the checkpoint do not match the " +
+					"corpus.");
+		}
+	}
+
+	/**
+	 * Starts a checkpoint with the standard sections. More sections can be
+	 * added before the writer is closed.
+	 */
+	public static Writer create(String path, Config config,
+			AbstractCorpus corpus) throws IOException {
+		Writer writer = new Writer(path);
+		try {
+			ByteArrayOutputStream configText = new ByteArrayOutputStream();
+			config.print(new PrintStream(configText, true, "UTF8"));
+			writer.writeStrings("config",
+					configText.toString("UTF8").split("\n"));
+			String[] tags = new String[corpus.numStates];
+			for (int i = 0; i < tags.length; i++) {
+				tags[i] = corpus.getTag(i);
+			}
+			writer.writeStrings("tags", tags);
+		} catch (IOException e) {
+			writer.abort();
+			throw e;
+		}
+		return writer;
+	}
+
+	/**
+	 * Writes sections to a temporary file that replaces the target only when
+	 * closed, so an interrupted write leaves the previous checkpoint intact.
+	 * A writer that cannot be completed must be aborted, which removes the
+	 * temporary file:
+	 *
+	 *   Writer writer = Checkpoint.create(...);
+	 *   try {
+	 *     ... write sections ...
+	 *     writer.close();
+	 *   } finally {
+	 *     writer.abort(); // does nothing once closed
+	 *   }
+	 */
+	public static class Writer {
+		private final File target, temp;
+		private final FileOutputStream file;
+		private final DataOutputStream out;
+		private final ArrayList<String> names;
+		private final ArrayList<long[]> ranges;
+		private boolean done;
+
+		public Writer(String path) throws IOException {
+			target = new File(path);
+			temp = new File(path + ".tmp");
+			file = new FileOutputStream(temp);
+			out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			names = new ArrayList<String>();
+			ranges = new ArrayList<long[]>();
+			try {
+				out.writeLong(magic);
+				out.writeInt(version);
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		/**
+		 * Offset of the next byte in the file. DataOutputStream.size() is an
+		 * int, so this flushes and asks the file instead.
+		 */
+		private long position() throws IOException {
+			out.flush();
+			return file.getChannel().position();
+		}
+
+		private void beginSection(String name) throws IOException {
+			long offset = position();
+			for (; offset % 8 != 0; offset++) {
+				out.writeByte(0);
+			}
+			names.add(name);
+			ranges.add(new long[] { offset, 0 });
+		}
+
+		private void endSection() throws IOException {
+			long[] range = ranges.get(ranges.size() - 1);
+			range[1] = position() - range[0];
+		}
+
+		public void writeDoubles(String name, double[] values)
+				throws IOException {
+			beginSection(name);
+			for (double v : values) {
+				out.writeDouble(v);
+			}
+			endSection();
+		}
+
+		/** Writes the rows one after another as a single double section. */
+		public void writeDoubles(String name, double[][] rows)
+				throws IOException {
+			beginSection(name);
+			for (double[] row : rows) {
+				for (double v : row) {
+					out.writeDouble(v);
+				}
+			}
+			endSection();
+		}
+
+		public void writeLongs(String name, long[] values) throws IOException {
+			beginSection(name);
+			for (long v : values) {
+				out.writeLong(v);
+			}
+			endSection();
+		}
+
+		public void writeStrings(String name, String[] values)
+				throws IOException {
+			beginSection(name);
+			out.writeInt(values.length);
+			for (String v : values) {
+				writeString(v);
+			}
+			endSection();
+		}
+
+		private void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes("UTF8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		public void close() throws IOException {
+			long tocOffset = position();
+			out.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				writeString(names.get(i));
+				out.writeLong(ranges.get(i)[0]);
+				out.writeLong(ranges.get(i)[1]);
+			}
+			out.writeLong(tocOffset);
+			out.close();
+			if (!temp.renameTo(target)) {
+				target.delete();
+				if (!temp.renameTo(target)) {
+					throw new IOException("Cannot move " + temp + " to " +
+							target);
+				}
+			}
+			done = true;
+		}
+
+		/**
+		 * Closes and deletes the temporary file, leaving the target as it
+		 * was. Does nothing after a successful close().
+		 */
+		public void abort() {
+			if (done) {
+				return;
+			}
+			done = true;
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package data;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a tab separated file line by line straight from the bytes: lines
+ * are trimmed and split on tabs in the read buffer, and only the fields
+ * that are asked for are decoded into Strings. Trimming and splitting
+ * follow String.trim() and String.split("\t"), so trailing empty fields
+ * are dropped.
+ *
+ * The encoding has to store tabs, newlines and spaces as single ASCII
+ * bytes, as UTF-8 and the ISO-8859 family do. ASCII fields are decoded
+ * without the charset, and so are all LATIN1 fields.
+ */
+class CoNLLScanner {
+	private final InputStream in;
+	private final Charset charset;
+	private final boolean latin1;
+	private byte[] buffer;
+	private int bufferEnd, next;
+	private boolean eof;
+	private int[] fieldStart, fieldEnd;
+	private int numFields;
+	private char[] chars;
+
+	CoNLLScanner(String path, String encoding) throws IOException {
+		in = new FileInputStream(path);
+		charset = Charset.forName(encoding);
+		latin1 = charset.name().equals("ISO-8859-1");
+		buffer = new byte[1 << 16];
+		bufferEnd = next = 0;
+		eof = false;
+		fieldStart = new int[16];
+		fieldEnd = new int[16];
+		chars = new char[256];
+	}
+
+	/** Moves to the next line, returns false at the end of the file. */
+	boolean nextLine() throws IOException {
+		int end = next;
+		while (true) {
+			while (end < bufferEnd && buffer[end] != '\n') {
+				end++;
+			}
+			if (end < bufferEnd || eof) {
+				break;
+			}
+			end -= fill();
+		}
+		if (next == bufferEnd && eof) {
+			return false;
+		}
+		split(next, end);
+		next = Math.min(end + 1, bufferEnd);
+		return true;
+	}
+
+	/**
+	 * Moves the current line to the front of the buffer, growing it if the
+	 * line fills it, and reads more. Returns how far the line moved.
+	 */
+	private int fill() throws IOException {
+		int shift = next;
+		if (shift > 0) {
+			System.arraycopy(buffer, shift, buffer, 0, bufferEnd - shift);
+			bufferEnd -= shift;
+			next = 0;
+		} else if (bufferEnd == buffer.length) {
+			byte[] grown = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, bufferEnd);
+			buffer = grown;
+		}
+		int read = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+		if (read < 0) {
+			eof = true;
+		} else {
+			bufferEnd += read;
+		}
+		return shift;
+	}
+
+	private void split(int start, int end) {
+		while (start < end && (buffer[start] & 0xff) <= ' ') {
+			start++;
+		}
+		while (end > start && (buffer[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		numFields = 0;
+		int fstart = start;
+		for (int k = start; k <= end; k++) {
+			if (k == end || buffer[k] == '\t') {
+				if (numFields == fieldStart.length) {
+					int[] grownStart = new int[numFields * 2];
+					int[] grownEnd = new int[numFields * 2];
+					System.arraycopy(fieldStart, 0, grownStart, 0, numFields);
+					System.arraycopy(fieldEnd, 0, grownEnd, 0, numFields);
+					fieldStart = grownStart;
+					fieldEnd = grownEnd;
+				}
+				fieldStart[numFields] = fstart;
+				fieldEnd[numFields] = k;
+				numFields++;
+				fstart = k + 1;
+			}
+		}
+		while (numFields > 1 && fieldStart[numFields - 1] ==
+				fieldEnd[numFields - 1]) {
+			numFields--;
+		}
+	}
+
+	int numFields() {
+		return numFields;
+	}
+
+	String field(int k) {
+		return decode(fieldStart[k], fieldEnd[k]);
+	}
+
+	/** Same as field(k).trim(). */
+	String trimmedField(int k) {
+		int start = fieldStart[k], end = fieldEnd[k];
+		while (start < end && (buffer[start] & 0xff) <= ' ') {
+			start++;
+		}
+		while (end > start && (buffer[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		return decode(start, end);
+	}
+
+	private String decode(int start, int end) {
+		int length = end - start;
+		if (length > chars.length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		for (int k = 0; k < length; k++) {
+			byte b = buffer[start + k];
+			if (b < 0 && !latin1) {
+				return new String(buffer, start, length, charset);
+			}
+			chars[k] = (char) (b & 0xff);
+		}
+		return new String(chars, 0, length);
+	}
+
+	void close() throws IOException {
+		in.close();
+	}
+}
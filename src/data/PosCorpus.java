@@ -5,8 +5,6 @@ import gnu.trove.TObjectIntHashMap;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -25,6 +23,10 @@ public class PosCorpus extends AbstractCorpus {
 	PosConfig config;
 	public int numTokens;
 	
+	// token and tag columns while loading: sentence i is tokens
+	// [startList[i], startList[i+1]), cut into the sequences and then freed
+	private TIntArrayList startList, tokenList, tagList, foldList;
+	
 	public PosCorpus(String[] corpusFiles, NGramMapper ngmap,
 			PosConfig config) throws NumberFormatException, IOException {
 		this.config = config;
@@ -38,15 +40,20 @@ public class PosCorpus extends AbstractCorpus {
 		maxSequenceID = 0;
 		maxSequenceLength = 0;
 		numTokens = 0;
-		
-		loadTags(corpusFiles);
-		loadUniversalTagMap(config.umapPath);
+		startList = new TIntArrayList();
+		tokenList = new TIntArrayList();
+		tagList = new TIntArrayList();
+		foldList = new TIntArrayList();
+		startList.add(0);
 		
 		for (int i = 0; i < corpusFiles.length; i++) {
 			loadFromCoNLLFile(corpusFiles[i], i);
 		}
+		System.out.println("Read " + tag2index.size() + " tags.");
+		loadUniversalTagMap(config.umapPath);
 		
 		remapUniversalTags();
+		createInstances();
 		numWords = index2word.size();
 		numTags = tag2index.size();
 		
@@ -77,26 +84,6 @@ public class PosCorpus extends AbstractCorpus {
 		}
 	}
 	
-	private void loadTags(String[] files) throws IOException {
-		for (String corpusFileName : files) {
-			String currLine;
-			BufferedReader reader = new BufferedReader(new FileReader(
-					corpusFileName));	
-			while ((currLine = reader.readLine()) != null) {			
-				currLine = reader.readLine();
-				if(currLine == null) break;
-				String[] tagInfo = currLine.trim().split("\t");	
-				for(String tag : tagInfo) {
-					map(tag2index, index2tag, tag.trim());
-				}
-				reader.readLine(); // skip dependency info
-				reader.readLine(); // skip empty line
-			}
-			reader.close();
-		}
-		System.out.println("Read " + tag2index.size() + " tags.");
-	}
-	
 	private void loadUniversalTagMap(String univTagPath) throws IOException	{
 		utag2index = new TObjectIntHashMap<String>();
 		for (int i = 0; i < UniversalTagSet.tags.length; i++) { 
@@ -132,83 +119,56 @@ public class PosCorpus extends AbstractCorpus {
 			tag2index.put(utag, i);
 			index2tag.add(utag);
 		}
-		for (PosSequence instance : instances) {
-			for(int i = 0; i < instance.length; i++) {
-				instance.tags[i] = umap[instance.tags[i]];
-			}
+		for (int k = 0; k < tagList.size(); k++) {
+			tagList.set(k, umap[tagList.getQuick(k)]);
 		}
 	}
 	
-	public PosSequence getInstance(int id) {
-		return instances.get(id);
+	private void createInstances() {
+		for (int i = 0; i < foldList.size(); i++) {
+			int start = startList.get(i), length = startList.get(i + 1) - start;
+			PosSequence instance = new PosSequence(this, i, foldList.get(i),
+					tokenList.toNativeArray(start, length),
+					tagList.toNativeArray(start, length));
+			instances.add(instance);
+			maxSequenceLength = Math.max(maxSequenceLength,
+					instance.length + 1);
+		}
+		maxSequenceID = instances.size();
+		numTokens = tokenList.size();
+		startList = tokenList = tagList = foldList = null;
 	}
 	
-	@Deprecated
-	protected void loadFromFile(String corpusFileName, int foldID)
-			throws IOException {
-		String currLine;
-		BufferedReader reader = new BufferedReader(new InputStreamReader(
- 	               new FileInputStream(corpusFileName), config.encoding));
-		while ((currLine = reader.readLine()) != null) {
-			String[] wordInfo = currLine.trim().split("\t");
-			currLine = reader.readLine();
-			if(currLine == null) break;
-			String[] tagInfo = currLine.trim().split("\t");
-			TIntArrayList words = new TIntArrayList();
-			TIntArrayList tags = new TIntArrayList();
-			
-			for (int i = 0; i < wordInfo.length; i++) {
-				String token = wordInfo[i].trim();	
-				words.add(map(word2index, index2word, token));
-				tags.add(tag2index.get(tagInfo[i].trim()));
-			}
-		
-			if (words.size() > 0) {
-				int seqID = instances.size();
-				PosSequence instance = new PosSequence(this, seqID, foldID, 
-						words.toNativeArray(), tags.toNativeArray());
-				instances.add(instance);
-				numTokens += instance.length;
-				
-				maxSequenceID = Math.max(maxSequenceID, seqID + 1);
-				maxSequenceLength = Math.max(maxSequenceLength,
-						words.size() + 1);
-			}
-			reader.readLine(); // skip dependency info
-			reader.readLine(); // skip empty line
-		}
-		reader.close();
+	public PosSequence getInstance(int id) {
+		return instances.get(id);
 	}
 	
+	/**
+	 * Appends the sentences of a CoNLL file to the token, tag and sentence
+	 * columns, reading it once. Word (2nd column) and tag (5th column) IDs
+	 * are assigned as they are first seen.
+	 */
 	protected void loadFromCoNLLFile(String corpusFileName, int foldID)
 			throws IOException {
-		String currLine;
-		BufferedReader reader = new BufferedReader(new InputStreamReader(
- 	               new FileInputStream(corpusFileName), config.encoding));
-		
-		TIntArrayList wordIds = new TIntArrayList();
-		TIntArrayList tagIds = new TIntArrayList();
-		while ((currLine = reader.readLine()) != null) {
-			String[] info = currLine.trim().split("\t");
-			if (info.length < 5) {
-				if (wordIds.size() > 0) {
-					int seqID = instances.size();
-					PosSequence instance = new PosSequence(this, seqID, foldID, 
-							wordIds.toNativeArray(), tagIds.toNativeArray());
-					instances.add(instance);
-					numTokens += instance.length;
-					maxSequenceID = Math.max(maxSequenceID, seqID + 1);
-					maxSequenceLength = Math.max(maxSequenceLength,
-						instance.length + 1);
-					wordIds.clear();
-					tagIds.clear();
+		CoNLLScanner scanner = new CoNLLScanner(corpusFileName,
+				config.encoding);
+		while (scanner.nextLine()) {
+			if (scanner.numFields() < 5) {
+				if (tokenList.size() > startList.get(startList.size() - 1)) {
+					startList.add(tokenList.size());
+					foldList.add(foldID);
 				}
 			} else {
-				wordIds.add(map(word2index, index2word, info[1]));
-				tagIds.add(tag2index.get(info[4].trim()));
+				tokenList.add(map(word2index, index2word, scanner.field(1)));
+				tagList.add(map(tag2index, index2tag,
+						scanner.trimmedField(4)));
 			}
 		}
-		reader.close();
+		scanner.close();
+		if (tokenList.size() > startList.get(startList.size() - 1)) {
+			startList.add(tokenList.size()); // no empty line at the end
+			foldList.add(foldID);
+		}
 	}
 
 	protected int map(TObjectIntHashMap<String> node2index,
@@ -1,36 +1,89 @@
 package data;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
 import gnu.trove.TDoubleArrayList;
 import gnu.trove.TIntArrayList;
 
+/**
+ * Weighted graph over n-gram nodes in compressed sparse row (CSR) layout:
+ * the edges of node i are [edgeStart(i), edgeEnd(i)), and getNeighbor(k),
+ * getWeight(k) give the other end and weight of edge k.
+ *
+ * Reads two file formats, told apart by the first bytes:
+ *   text, one "node \t neighbor \t weight" line per edge, IDs from 1;
+ *   binary CSR (see save()): magic, version, number of nodes and edges,
+ *   then offsets, neighbours and weights as big-endian arrays.
+ * Binary files are memory-mapped, so loading does not parse anything and
+ * the edge arrays are read straight from the mapping.
+ */
 public class SparseSimilarityGraph {
-	public int numNodes; 
-	public TIntArrayList[] edges;
-	public TDoubleArrayList[] weights;
+	static final long magic = 0x7072672d67727068L; // "prg-grph"
+	public static final int version = 1;
+	static final int headerSize = 24;
+
+	public int numNodes, numEdges;
 	public double[] degrees;
 	public double weightNorm;
-	
+	private int numRows; // nodes stored in the file, at most numNodes
+	private IntBuffer offsets, neighbors;
+	private DoubleBuffer weights;
+
 	public SparseSimilarityGraph(String graphPath, int numNodes)
 			throws NumberFormatException, IOException {
 		this.numNodes = numNodes;
-		this.edges = new TIntArrayList[numNodes];
-		this.weights = new TDoubleArrayList[numNodes];
+		if (isBinary(graphPath)) {
+			System.out.println("Mapping binary graph");
+			map(graphPath);
+		} else {
+			System.out.println("Reading graph");
+			read(graphPath);
+		}
 		this.degrees = new double[numNodes];
 		this.weightNorm = 0;
-		
 		for (int i = 0; i < numNodes; i++) {
-			edges[i] = new TIntArrayList();
-			weights[i] = new TDoubleArrayList();
-			degrees[i] = 0.0;
+			for (int k = edgeStart(i); k < edgeEnd(i); k++) {
+				degrees[i] += weights.get(k);
+				weightNorm += weights.get(k);
+			}
+		}
+		System.out.println("Graph weight norm:\t" + weightNorm);
+	}
+
+	private static boolean isBinary(String graphPath) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new FileInputStream(graphPath));
+		try {
+			return in.readLong() == magic;
+		} catch (IOException e) {
+			return false; // shorter than the magic number
+		} finally {
+			in.close();
+		}
+	}
+
+	private void read(String graphPath) throws IOException {
+		TIntArrayList[] rowEdges = new TIntArrayList[numNodes];
+		TDoubleArrayList[] rowWeights = new TDoubleArrayList[numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			rowEdges[i] = new TIntArrayList();
+			rowWeights[i] = new TDoubleArrayList();
 		}
-		
 		String currLine;
 		BufferedReader reader = new BufferedReader(new FileReader(graphPath));
-
-		System.out.println("Reading graph");		
+		numEdges = 0;
 		while ((currLine = reader.readLine()) != null) {
 			String[] info = currLine.trim().split("\t");
 			if (info.length < 3) {
@@ -39,15 +92,158 @@ public class SparseSimilarityGraph {
 			int nid = Integer.parseInt(info[0]) - 1;
 			int eid = Integer.parseInt(info[1]) - 1;
 			double w = Double.parseDouble(info[2]);
-			edges[nid].add(eid);
-			weights[nid].add(w);
-			degrees[nid] += w;
-			weightNorm += w;
+			rowEdges[nid].add(eid);
+			rowWeights[nid].add(w);
+			++ numEdges;
 		}
 		reader.close();
-		System.out.println("Graph weight norm:\t" + weightNorm);
+
+		int[] rowStart = new int[numNodes + 1];
+		int[] cols = new int[numEdges];
+		double[] vals = new double[numEdges];
+		for (int i = 0; i < numNodes; i++) {
+			int size = rowEdges[i].size();
+			for (int j = 0; j < size; j++) {
+				cols[rowStart[i] + j] = rowEdges[i].get(j);
+				vals[rowStart[i] + j] = rowWeights[i].get(j);
+			}
+			rowStart[i + 1] = rowStart[i] + size;
+			rowEdges[i] = null;
+			rowWeights[i] = null;
+		}
+		numRows = numNodes;
+		offsets = IntBuffer.wrap(rowStart);
+		neighbors = IntBuffer.wrap(cols);
+		weights = DoubleBuffer.wrap(vals);
 	}
-	
+
+	private void map(String graphPath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(graphPath, "r");
+		FileChannel channel = file.getChannel();
+		try {
+			ByteBuffer header = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, headerSize);
+			int fileVersion = header.getInt(8);
+			if (fileVersion > version) {
+				throw new IOException(String.format("%s has version %d, " +
+						"only up to %d is supported.", graphPath, fileVersion,
+						version));
+			}
+			numRows = header.getInt(12);
+			numEdges = header.getInt(16);
+			if (numRows > numNodes) {
+				throw new IOException(String.format("%s has %d nodes, " +
+						"expecting at most %d.", graphPath, numRows, numNodes));
+			}
+			long pos = headerSize;
+			offsets = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+					4L * (numRows + 1)).asIntBuffer();
+			pos += 4L * (numRows + 1);
+			neighbors = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+					4L * numEdges).asIntBuffer();
+			pos += 4L * numEdges;
+			pos = (pos + 7) / 8 * 8;
+			weights = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+					8L * numEdges).asDoubleBuffer();
+		} finally {
+			file.close(); // the mappings stay valid
+		}
+	}
+
+	/** First edge of node i. */
+	public int edgeStart(int i) {
+		return offsets.get(Math.min(i, numRows));
+	}
+
+	/** One past the last edge of node i. */
+	public int edgeEnd(int i) {
+		return offsets.get(Math.min(i + 1, numRows));
+	}
+
+	public int getNeighbor(int k) {
+		return neighbors.get(k);
+	}
+
+	public double getWeight(int k) {
+		return weights.get(k);
+	}
+
+	/**
+	 * Plain array CSR layout of the graph for hot loops: the edges of node i
+	 * are col[k], weight[k] for k in [rowStart[i], rowStart[i+1]).
+	 */
+	public static class CSRView {
+		public final int[] rowStart, col;
+		public final double[] weight;
+
+		CSRView(int[] rowStart, int[] col, double[] weight) {
+			this.rowStart = rowStart;
+			this.col = col;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Copies the graph into arrays. If rowScale is given, the weights of
+	 * node i are divided by rowScale[i] (when positive), as the constraints
+	 * do with node frequencies.
+	 */
+	public CSRView getCSRView(double[] rowScale) {
+		int[] rowStart = new int[numNodes + 1];
+		for (int i = 0; i <= numNodes; i++) {
+			rowStart[i] = (i < numNodes ? edgeStart(i) : numEdges);
+		}
+		int[] col = new int[numEdges];
+		double[] weight = new double[numEdges];
+		neighbors.duplicate().get(col);
+		weights.duplicate().get(weight);
+		if (rowScale != null) {
+			for (int i = 0; i < numNodes; i++) {
+				if (rowScale[i] > 0) {
+					for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+						weight[k] /= rowScale[i];
+					}
+				}
+			}
+		}
+		return new CSRView(rowStart, col, weight);
+	}
+
+	/** Writes the graph in the binary CSR format. */
+	public void save(String path) throws IOException {
+		CSRView csr = getCSRView(null);
+		save(path, numNodes, csr.rowStart, csr.col, csr.weight);
+	}
+
+	/**
+	 * Writes a graph in the binary CSR format: the edges of node i are
+	 * cols[k], vals[k] for k in [rowStart[i], rowStart[i+1]).
+	 */
+	public static void save(String path, int numNodes, int[] rowStart,
+			int[] cols, double[] vals) throws IOException {
+		int numEdges = rowStart[numNodes];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(path), 1 << 16));
+		out.writeLong(magic);
+		out.writeInt(version);
+		out.writeInt(numNodes);
+		out.writeInt(numEdges);
+		out.writeInt(0);
+		for (int i = 0; i <= numNodes; i++) {
+			out.writeInt(rowStart[i]);
+		}
+		for (int k = 0; k < numEdges; k++) {
+			out.writeInt(cols[k]);
+		}
+		while (out.size() % 8 != 0) {
+			out.writeByte(0);
+		}
+		for (int k = 0; k < numEdges; k++) {
+			out.writeDouble(vals[k]);
+		}
+		out.close();
+	}
+
 	public double computeGoldViolation(AbstractCorpus corpus) {
 		double violation = 0;
 		double[][] goldDist = new double[corpus.numNodes][corpus.numStates - 2];
@@ -65,10 +261,11 @@ public class SparseSimilarityGraph {
 				}
 			}
 		}		
+		CSRView csr = getCSRView(null);
 		for (int i = 0; i < corpus.numNodes; i++) {		
-			for (int j = 0; j < edges[i].size(); j++) {
-				int e = edges[i].get(j);
-				double w = weights[i].get(j);
+			for (int j = csr.rowStart[i]; j < csr.rowStart[i + 1]; j++) {
+				int e = csr.col[j];
+				double w = csr.weight[j];
 				for (int k = 0; k < corpus.numStates - 2; k++) {
 					double diff = goldDist[i][k] - goldDist[e][k];
 					violation += diff * diff * w / 2;
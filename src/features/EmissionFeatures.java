@@ -0,0 +1,151 @@
+package features;
+
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+
+import java.util.Arrays;
+
+import parallel.SparseAccumulator;
+
+/**
+ * Emission features factorized as observation x state. An observation is
+ * what an emission template reads off a word type at an offset (its
+ * lowercased form, a suffix, a shape bit), packed by FeatureKeys with the
+ * state left 0, so that observation | s is the key of its feature for state
+ * s. Each word type keeps the IDs of its observations once per
+ * offset instead of one feature array per state, and the feature of an
+ * observation conjoined with a state is looked up in a table.
+ *
+ * An emission feature exists for (offset, word type, state) when the state
+ * was added for that observation, so the states that get emission features
+ * must only depend on the offset, as in all the feature extractors here.
+ * All emission features have the same value.
+ */
+class EmissionFeatures {
+	final int numStates;
+	final int[][][] nodeObservations; // offset, word type -> observation IDs
+	int[][] observationFeatures; // observation ID, state -> feature ID or -1
+	private final TLongIntHashMap observation2index; // to observation ID + 1
+	private final TLongArrayList index2observation;
+	private int numFeatures;
+	double value;
+
+	EmissionFeatures(int numWordTypes, int numStates) {
+		this.numStates = numStates;
+		nodeObservations = new int[3][numWordTypes][];
+		observationFeatures = new int[1024][];
+		observation2index = new TLongIntHashMap(FeatureKeys.hashing);
+		index2observation = new TLongArrayList();
+		numFeatures = 0;
+	}
+
+	/** Sets the observations of word type nid at offset, in template order. */
+	void setObservations(int offset, int nid, TLongArrayList observations) {
+		int[] obs = new int[observations.size()];
+		for (int k = 0; k < obs.length; k++) {
+			obs[k] = observation(observations.getQuick(k));
+		}
+		nodeObservations[offset][nid] = obs;
+	}
+
+	private int observation(long observation) {
+		int obs = observation2index.get(observation) - 1;
+		if (obs < 0) {
+			obs = index2observation.size();
+			index2observation.add(observation);
+			observation2index.put(observation, obs + 1);
+			if (obs == observationFeatures.length) {
+				observationFeatures = Arrays.copyOf(observationFeatures, obs * 2);
+			}
+			observationFeatures[obs] = new int[numStates];
+			Arrays.fill(observationFeatures[obs], -1);
+		}
+		return obs;
+	}
+
+	long getObservation(int obs) {
+		return index2observation.getQuick(obs);
+	}
+
+	void addFeature(int obs, int s, int fid) {
+		observationFeatures[obs][s] = fid;
+		numFeatures++;
+	}
+
+	int getNumFeatures() {
+		return numFeatures;
+	}
+
+	int getNumObservations() {
+		return index2observation.size();
+	}
+
+	/** Number of emission features of state s for word type nid at offset. */
+	int numFeatures(int offset, int nid, int s) {
+		int n = 0;
+		for (int obs : nodeObservations[offset][nid]) {
+			if (observationFeatures[obs][s] >= 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	double score(int offset, int nid, int s, double[] parameters) {
+		double r = 0;
+		for (int obs : nodeObservations[offset][nid]) {
+			int fid = observationFeatures[obs][s];
+			if (fid >= 0) {
+				r += parameters[fid] * value;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Adds the scores of word type nid at offset for all states, in one pass
+	 * over its observations, to scores[start + s].
+	 */
+	void addScores(int offset, int nid, double[] parameters, double[] scores,
+			int start) {
+		for (int obs : nodeObservations[offset][nid]) {
+			int[] fids = observationFeatures[obs];
+			for (int s = 0; s < numStates; s++) {
+				if (fids[s] >= 0) {
+					scores[start + s] += parameters[fids[s]] * value;
+				}
+			}
+		}
+	}
+
+	void cacheScores(ScoreCache cache, double[] parameters) {
+		double[] table = cache.nodeTable();
+		for (int offset = 0; offset < 3; offset++) {
+			for (int wid = 0; wid < nodeObservations[offset].length; wid++) {
+				int base = cache.nodeIndex(offset, wid, 0);
+				Arrays.fill(table, base, base + numStates, 0);
+				addScores(offset, wid, parameters, table, base);
+			}
+		}
+	}
+
+	void addToEmpirical(int offset, int nid, int s, double[] empirical,
+			double marginal) {
+		for (int obs : nodeObservations[offset][nid]) {
+			int fid = observationFeatures[obs][s];
+			if (fid >= 0) {
+				empirical[fid] += marginal * value;
+			}
+		}
+	}
+
+	void addToEmpirical(int offset, int nid, int s,
+			SparseAccumulator empirical, double marginal) {
+		for (int obs : nodeObservations[offset][nid]) {
+			int fid = observationFeatures[obs][s];
+			if (fid >= 0) {
+				empirical.add(fid, marginal * value);
+			}
+		}
+	}
+}
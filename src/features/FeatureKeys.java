@@ -0,0 +1,87 @@
+package features;
+
+import gnu.trove.TLongHashingStrategy;
+import gnu.trove.TObjectIntHashMap;
+
+import java.util.ArrayList;
+
+/**
+ * Features as packed long keys instead of strings: the template ID in the
+ * top 8 bits, then either one 32-bit atom and a state, or three states of
+ * 16 bits each. Atoms are the strings a template reads (words, lowercased
+ * words, suffixes), interned once so that extracting features for every
+ * (offset, word type, state) does no string building or string hashing.
+ *
+ * Feature names are only built from the keys when they are asked for.
+ */
+public class FeatureKeys {
+	/**
+	 * Hashing for maps keyed by packed features. Trove's default folds the
+	 * two halves of the key together, which collides a lot for these keys,
+	 * so the bits are mixed first (the MurmurHash3 finalizer).
+	 */
+	public static final TLongHashingStrategy hashing =
+			new TLongHashingStrategy() {
+		private static final long serialVersionUID = 1L;
+
+		public int computeHashCode(long key) {
+			return (int) mix(key);
+		}
+	};
+
+	/** The MurmurHash3 finalizer, which spreads every bit over the key. */
+	public static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private final TObjectIntHashMap<String> atom2index;
+	private final ArrayList<String> index2atom;
+
+	public FeatureKeys() {
+		atom2index = new TObjectIntHashMap<String>();
+		index2atom = new ArrayList<String>();
+	}
+
+	/** Returns the ID of an atom string, adding it if it is new. */
+	public int atom(String atom) {
+		if (atom2index.contains(atom)) {
+			return atom2index.get(atom);
+		}
+		int idx = index2atom.size();
+		index2atom.add(atom);
+		atom2index.put(atom, idx);
+		return idx;
+	}
+
+	public String getAtom(int atomID) {
+		return index2atom.get(atomID);
+	}
+
+	public static long key(int template, int atom, int s) {
+		return ((long) template << 56) | ((atom & 0xffffffffL) << 16) | s;
+	}
+
+	public static long key(int template, int s0, int s1, int s2) {
+		return ((long) template << 56) | ((long) s0 << 32) |
+				((long) s1 << 16) | s2;
+	}
+
+	public static int template(long key) {
+		return (int) (key >>> 56);
+	}
+
+	/** Atom of a key made by key(template, atom, s). */
+	public static int atomOf(long key) {
+		return (int) (key >>> 16);
+	}
+
+	/** The k-th state of a key made by key(template, s0, s1, s2), or s. */
+	public static int state(long key, int k) {
+		return (int) (key >>> (16 * (2 - k))) & 0xffff;
+	}
+}
@@ -1,6 +1,7 @@
 package features;
 
 import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongArrayList;
 import java.util.Arrays;
 import config.OCRConfig;
 import data.OCRCorpus;
@@ -36,15 +37,19 @@ public class OCRSOPotentialFunction extends SecondOrderPotentialFunction {
 			}
 		}
 		
+		TLongArrayList observations = new TLongArrayList();
 		for(int i = 0; i < numWordTypes; i++) {
+			for(int offset = 0; offset < 3; offset++) {
+				extractObservations(offset, i, observations);
+			}
 			for(int j = 0; j < numTStates; j++) {
-				extractEmissionFeatures(0, i, j); // previous character
-				extractEmissionFeatures(1, i, j); // current character
-				extractEmissionFeatures(2, i, j); // next character
+				addEmissionFeatures(0, i, j); // previous character
+				addEmissionFeatures(1, i, j); // current character
+				addEmissionFeatures(2, i, j); // next character
 			}
 			
-			extractEmissionFeatures(2, i, S0);
-			extractEmissionFeatures(0, i, SN); 
+			addEmissionFeatures(2, i, S0);
+			addEmissionFeatures(0, i, SN); 
 		}
 		
 		assignFeatureValues(config.scaleFeatures);
@@ -71,22 +76,26 @@ public class OCRSOPotentialFunction extends SecondOrderPotentialFunction {
 	}
 
 	
-	private void extractEmissionFeatures(int offset, int nid, int s) 
+	/** The pixels that are on, an observation per offset and pixel. */
+	private void extractObservations(int offset, int nid,
+			TLongArrayList observations) 
 	{
 		int[] pixels = myCorpus.getWord(nid);
-		String sChar = myCorpus.getTag(s);
 		
-		TIntIntHashMap fv = new TIntIntHashMap();
+		observations.resetQuick();
 		for(int i = 0; i < pixels.length; i++)
 			if(pixels[i] > 0) { 
-				add(fv, "P" + offset + "=" + sChar + i, true);
+				observations.add(FeatureKeys.key(offset, i, 0));
 			}
 		
-		nodeFeatures[offset][nid][s] = fv.keys();
-		Arrays.sort(nodeFeatures[offset][nid][s]);
-		nodeFeatureVal[offset][nid][s] = new double[fv.size()];
+		setObservations(offset, nid, observations);
 	}
 
-
-	
+	/** Spells out an emission feature as "P" + offset + "=" + tag + pixel. */
+	@Override
+	protected String getFeatureName(long key)
+	{
+		return "P" + FeatureKeys.template(key) + "=" +
+				myCorpus.getTag(FeatureKeys.state(key, 2)) + FeatureKeys.atomOf(key);
+	}
 }
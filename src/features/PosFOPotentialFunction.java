@@ -1,8 +1,12 @@
 package features;
 
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongArrayList;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import config.PosConfig;
 import data.PosCorpus;
 import data.RegexHelper;
@@ -10,12 +14,49 @@ import data.RegexHelper;
 public class PosFOPotentialFunction extends FirstOrderPotentialFunction {
 	private PosCorpus myCorpus;
 	
+	// emission templates, a block of 8 per offset, then the transitions
+	static final int LTK = 1, CAP = 2, DIG = 3, PUN = 4, HYPHEN = 5,
+			PERIOD = 6, SUF = 7;
+	static final int S1 = 24, S0_ = 25, S10 = 26;
+	static final int[] transitionTemplates = { S1, S0_, S10 };
+	
+	private FeatureKeys keys;
+	private String[] tagNames;
+	// observation templates (without the offset) and atoms of each word type
+	private int[][] wordTemplates, wordAtoms;
+	private TIntIntHashMap fv;
+	private TLongArrayList observations;
+	
 	public PosFOPotentialFunction(PosCorpus corpus, PosConfig config) {
 		super(corpus);
 		this.myCorpus = corpus;
 		System.out.println(String.format(
 				"Extract features from %d nodes and %d/%d states.", 
 				numWordTypes, numTStates, numStates));
+		
+		keys = new FeatureKeys();
+		fv = new TIntIntHashMap();
+		observations = new TLongArrayList();
+		tagNames = new String[numStates];
+		for (int i = 0; i < numStates; i++) {
+			tagNames[i] = myCorpus.getTag(i);
+		}
+		wordTemplates = new int[numWordTypes][];
+		wordAtoms = new int[numWordTypes][];
+		TIntArrayList templates = new TIntArrayList();
+		ArrayList<String> atoms = new ArrayList<String>();
+		for (int i = 0; i < numWordTypes; i++) {
+			templates.resetQuick();
+			atoms.clear();
+			getObservations(myCorpus.getWord(i), templates, atoms);
+			wordTemplates[i] = templates.toNativeArray();
+			wordAtoms[i] = new int[atoms.size()];
+			for (int k = 0; k < atoms.size(); k++) {
+				wordAtoms[i][k] = atoms.get(k) == null ? 0 :
+						keys.atom(atoms.get(k));
+			}
+		}
+		
 		for (int i = 0; i < numTStates; i++) {
 			extractTransitionFeatures(SN, i);
 			extractTransitionFeatures(i, S0);
@@ -24,64 +65,131 @@ public class PosFOPotentialFunction extends FirstOrderPotentialFunction {
 			}
 		}
 		for (int i = 0; i < numWordTypes; i++) {
+			for (int offset = 0; offset < 3; offset++) {
+				extractObservations(offset, i);
+			}
 			for (int j = 0; j < numTStates; j++) {
-				extractEmissionFeatures(0, i, j); // previous character
-				extractEmissionFeatures(1, i, j); // current character
-				extractEmissionFeatures(2, i, j); // next character
+				addEmissionFeatures(0, i, j); // previous character
+				addEmissionFeatures(1, i, j); // current character
+				addEmissionFeatures(2, i, j); // next character
 			}
-			extractEmissionFeatures(2, i, S0);
-			extractEmissionFeatures(0, i, SN); 
+			addEmissionFeatures(2, i, S0);
+			addEmissionFeatures(0, i, SN); 
 		}
 		assignFeatureValues(config.scaleFeatures);
 	}
 	
 	private void extractTransitionFeatures(int s, int sp)  {
-		String spTag = myCorpus.getTag(sp);
-		String sTag = myCorpus.getTag(s);
-		TIntIntHashMap fv = new TIntIntHashMap();
-		add(fv, "S-1=" + spTag, true);
-		add(fv, "S-0=" + sTag, true);
-		add(fv, "S-10=" + spTag + " " + sTag, true); 
+		fv.clear();
+		for (int t : transitionTemplates) {
+			add(fv, getTransitionKey(t, s, sp), true);
+		}
 		edgeFeatures[s][sp] = fv.keys();
 		Arrays.sort(edgeFeatures[s][sp]);
 		edgeFeatureVal[s][sp] = new double[fv.size()];
 	}
 
-	private void extractEmissionFeatures(int offset, int nid, int s)  {
-		String tok = myCorpus.getWord(nid);
-		String tag = myCorpus.getTag(s);
-		String prefix = "P" + offset;
-		TIntIntHashMap fv = new TIntIntHashMap();
-		//add(fv, prefix + "Tg=" + tag, true);
-		//add(fv, prefix + "Tk=" + tok + " "  + tag, true); // lowercased token
-		add(fv, prefix + "LTk=" + tok.toLowerCase() + " "  + tag, true); // lowercased token
+	private void extractObservations(int offset, int nid)  {
+		observations.resetQuick();
+		for (int k = 0; k < wordTemplates[nid].length; k++) {
+			observations.add(FeatureKeys.key(8 * offset + wordTemplates[nid][k],
+					wordAtoms[nid][k], 0));
+		}
+		setObservations(offset, nid, observations);
+	}
+
+	@Override
+	protected String getFeatureName(long key) {
+		int t = FeatureKeys.template(key);
+		String tag = tagNames[FeatureKeys.state(key, 2)];
+		if (t >= S1) {
+			return getTransitionName(t, tag,
+					tagNames[FeatureKeys.state(key, 1)]);
+		}
+		String atom = (t % 8 == LTK || t % 8 == SUF) ?
+				keys.getAtom(FeatureKeys.atomOf(key)) : null;
+		return getEmissionName(t, atom, tag);
+	}
+
+	/*
+	 * Feature templates. Training packs them into keys and spells the keys
+	 * with getFeatureName(); PosTaggingModel spells them directly, through the
+	 * same methods, so that a saved model sees exactly the features it was
+	 * trained with.
+	 */
+
+	/** Packs transition template t, keeping the states it conjoins. */
+	private static long getTransitionKey(int t, int s, int sp) {
+		switch (t) {
+		case S1: return FeatureKeys.key(t, 0, sp, 0);
+		case S0_: return FeatureKeys.key(t, 0, 0, s);
+		default: return FeatureKeys.key(t, 0, sp, s);
+		}
+	}
+
+	public static String getTransitionName(int t, String sTag, String spTag) {
+		switch (t) {
+		case S1: return "S-1=" + spTag;
+		case S0_: return "S-0=" + sTag;
+		default: return "S-10=" + spTag + " " + sTag;
+		}
+	}
+
+	/** Names of the transition features of (s, sp), in extraction order. */
+	public static void getTransitionFeatures(String sTag, String spTag,
+			List<String> features) {
+		for (int t : transitionTemplates) {
+			features.add(getTransitionName(t, sTag, spTag));
+		}
+	}
+
+	/**
+	 * Adds the observation templates that fire for tok, without the offset
+	 * (8 * offset is added per position), and the atom each one reads, or
+	 * null.
+	 */
+	public static void getObservations(String tok, TIntArrayList templates,
+			List<String> atoms) {
+		templates.add(LTK);
+		atoms.add(tok.toLowerCase()); // lowercased token
 		if (tok.toUpperCase().charAt(0) == tok.charAt(0)) {
-			//add(fv, prefix + "isCap", true);
-			add(fv, prefix + "Cap=" + tag, true);  // is capitalized
+			templates.add(CAP); // is capitalized
+			atoms.add(null);
 		}
 		if (RegexHelper.isNumerical(tok)) {
-			//add(fv, prefix + "isDig", true);
-			add(fv, prefix + "Dig=" + tag, true);
+			templates.add(DIG);
+			atoms.add(null);
 		}
 		if (RegexHelper.isPunctuation(tok)) {
-			//add(fv, prefix + "isPun", true);
-			add(fv, prefix + "Pun=" + tag, true);
+			templates.add(PUN);
+			atoms.add(null);
 		}
 		if (tok.indexOf('-') >= 0) {
-			//add(fv, prefix + "has=-", true);
-			add(fv, prefix + "has=- | " + tag, true);
+			templates.add(HYPHEN);
+			atoms.add(null);
 		}
 		if (tok.indexOf('.')  >= 0) {
-			//add(fv, prefix + "Pun=.", true);
-			add(fv, prefix + "has=. | " + tag, true);
+			templates.add(PERIOD);
+			atoms.add(null);
 		}
 		int len = tok.length();
 		for (int l = 2; l <= 4 && l < len; l++) {
-			//add(fv, prefix + "Suf" + l + "=" + tok.substring(len - l, len), true);
-			add(fv, prefix + "Suf=" + tok.substring(len - l, len) + " | " + tag, true);
+			templates.add(SUF);
+			atoms.add(tok.substring(len - l, len));
+		}
+	}
+
+	/** Name of emission template t (offset included) conjoined with tag. */
+	public static String getEmissionName(int t, String atom, String tag) {
+		String prefix = "P" + t / 8;
+		switch (t % 8) {
+		case LTK: return prefix + "LTk=" + atom + " "  + tag;
+		case CAP: return prefix + "Cap=" + tag;
+		case DIG: return prefix + "Dig=" + tag;
+		case PUN: return prefix + "Pun=" + tag;
+		case HYPHEN: return prefix + "has=- | " + tag;
+		case PERIOD: return prefix + "has=. | " + tag;
+		default: return prefix + "Suf=" + atom + " | " + tag;
 		}
-		nodeFeatures[offset][nid][s] = fv.keys();
-		Arrays.sort(nodeFeatures[offset][nid][s]);
-		nodeFeatureVal[offset][nid][s] = new double[fv.size()];
 	}
 }
@@ -1,7 +1,11 @@
 package features;
 
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongArrayList;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 import config.PosConfig;
@@ -11,16 +15,56 @@ import data.RegexHelper;
 public class PosSOPotentialFunction extends SecondOrderPotentialFunction {
 	private PosCorpus myCorpus;
 	private PosConfig config;
+	private Locale locale;
+	
+	// emission templates, a block of 8 per offset, then the transitions
+	static final int TK = 0, LTK = 1, CAP = 2, DIG = 3, PUN = 4, HYPHEN = 5,
+			PERIOD = 6, SUF = 7;
+	static final int S2 = 24, S1 = 25, S0_ = 26, S10 = 27, S20 = 28,
+			S12 = 29, S120 = 30;
+	static final int[] transitionTemplates = { S2, S1, S0_, S10, S20, S12,
+			S120 };
+	
+	private FeatureKeys keys;
+	private String[] tagNames;
+	// observation templates (without the offset) and atoms of each word type
+	private int[][] wordTemplates, wordAtoms;
+	private TIntIntHashMap fv;
+	private TLongArrayList observations;
 	
 	public PosSOPotentialFunction(PosCorpus corpus, PosConfig config) {
 		super(corpus);
 		this.myCorpus = corpus;
 		this.config = config;
+		this.locale = new Locale(config.langName);
 		
 		System.out.println(String.format(
 				"Extract features from %d nodes and %d/%d states.", 
 				numWordTypes, numTStates, numStates));
 		
+		keys = new FeatureKeys();
+		fv = new TIntIntHashMap();
+		observations = new TLongArrayList();
+		tagNames = new String[numStates];
+		for(int i = 0; i < numStates; i++) {
+			tagNames[i] = myCorpus.getTag(i);
+		}
+		wordTemplates = new int[numWordTypes][];
+		wordAtoms = new int[numWordTypes][];
+		TIntArrayList templates = new TIntArrayList();
+		ArrayList<String> atoms = new ArrayList<String>();
+		for(int i = 0; i < numWordTypes; i++) {
+			templates.resetQuick();
+			atoms.clear();
+			getObservations(myCorpus.getWord(i), locale, templates, atoms);
+			wordTemplates[i] = templates.toNativeArray();
+			wordAtoms[i] = new int[atoms.size()];
+			for(int k = 0; k < atoms.size(); k++) {
+				wordAtoms[i][k] = atoms.get(k) == null ? 0 :
+						keys.atom(atoms.get(k));
+			}
+		}
+		
 		for(int i = 0; i < numTStates; i++) {
 			extractTransitionFeatures(i, S0, S00);
 			extractTransitionFeatures(SN, i, S0);
@@ -36,70 +80,147 @@ public class PosSOPotentialFunction extends SecondOrderPotentialFunction {
 		}
 		
 		for(int i = 0; i < numWordTypes; i++) {
+			for(int offset = 0; offset < 3; offset++) {
+				extractObservations(offset, i);
+			}
 			for(int j = 0; j < numTStates; j++) {
-				extractEmissionFeatures(0, i, j); // previous character
-				extractEmissionFeatures(1, i, j); // current character
-				extractEmissionFeatures(2, i, j); // next character
+				addEmissionFeatures(0, i, j); // previous character
+				addEmissionFeatures(1, i, j); // current character
+				addEmissionFeatures(2, i, j); // next character
 			}	
-			extractEmissionFeatures(2, i, S0);
-			extractEmissionFeatures(0, i, SN); 
+			addEmissionFeatures(2, i, S0);
+			addEmissionFeatures(0, i, SN); 
 		}
 		assignFeatureValues(config.scaleFeatures);
 	}
 	
 	private void extractTransitionFeatures(int s, int sp, int spp) {
-		String sppTag = myCorpus.getTag(spp);
-		String spTag = myCorpus.getTag(sp);
-		String sTag = myCorpus.getTag(s);
-		
-		TIntIntHashMap fv = new TIntIntHashMap();
-		add(fv, "S-2=" + sppTag, true);
-		add(fv, "S-1=" + spTag, true);
-		add(fv, "S-0=" + sTag, true);
-		add(fv, "S-10=" + spTag + " " + sTag, true); 
-		add(fv, "S-20=" + sppTag + " " + sTag, true);
-		add(fv, "S-1-2=" + sppTag + " " + spTag, true);
-		add(fv, "S-1-20=" + sppTag + " " + spTag + " " + sTag, true);
-		
+		fv.clear();
+		for(int t : transitionTemplates) {
+			add(fv, getTransitionKey(t, s, sp, spp), true);
+		}
 		edgeFeatures[s][sp][spp] = fv.keys();
 		Arrays.sort(edgeFeatures[s][sp][spp]);
 		edgeFeatureVal[s][sp][spp] = new double[fv.size()];
 	}
 
-	private void extractEmissionFeatures(int offset, int nid, int s) {
-		String tok = myCorpus.getWord(nid);
-		String tag = myCorpus.getTag(s);
-		String prefix = "P" + offset;
-		Locale locale = new Locale(config.langName);
-		
-		TIntIntHashMap fv = new TIntIntHashMap();
-		add(fv, prefix + "Tk=" + tok + " "  + tag, true);
-		add(fv, prefix + "LTk=" + tok.toLowerCase(locale) + " " + tag, true);
+	private void extractObservations(int offset, int nid) {
+		observations.resetQuick();
+		for(int k = 0; k < wordTemplates[nid].length; k++) {
+			observations.add(FeatureKeys.key(8 * offset + wordTemplates[nid][k],
+					wordAtoms[nid][k], 0));
+		}
+		setObservations(offset, nid, observations);
+	}
+
+	@Override
+	protected String getFeatureName(long key) {
+		int t = FeatureKeys.template(key);
+		String tag = tagNames[FeatureKeys.state(key, 2)];
+		if(t >= S2) {
+			return getTransitionName(t, tag,
+					tagNames[FeatureKeys.state(key, 1)],
+					tagNames[FeatureKeys.state(key, 0)]);
+		}
+		String atom = (t % 8 == TK || t % 8 == LTK || t % 8 == SUF) ?
+				keys.getAtom(FeatureKeys.atomOf(key)) : null;
+		return getEmissionName(t, atom, tag);
+	}
+
+	/*
+	 * Feature templates. Training packs them into keys and spells the keys
+	 * with getFeatureName(); PosTaggingModel spells them directly, through the
+	 * same methods, so that a saved model sees exactly the features it was
+	 * trained with.
+	 */
+
+	/** Packs transition template t, keeping the states it conjoins. */
+	private static long getTransitionKey(int t, int s, int sp, int spp) {
+		switch (t) {
+		case S2: return FeatureKeys.key(t, spp, 0, 0);
+		case S1: return FeatureKeys.key(t, 0, sp, 0);
+		case S0_: return FeatureKeys.key(t, 0, 0, s);
+		case S10: return FeatureKeys.key(t, 0, sp, s);
+		case S20: return FeatureKeys.key(t, spp, 0, s);
+		case S12: return FeatureKeys.key(t, spp, sp, 0);
+		default: return FeatureKeys.key(t, spp, sp, s);
+		}
+	}
+
+	public static String getTransitionName(int t, String sTag, String spTag,
+			String sppTag) {
+		switch (t) {
+		case S2: return "S-2=" + sppTag;
+		case S1: return "S-1=" + spTag;
+		case S0_: return "S-0=" + sTag;
+		case S10: return "S-10=" + spTag + " " + sTag;
+		case S20: return "S-20=" + sppTag + " " + sTag;
+		case S12: return "S-1-2=" + sppTag + " " + spTag;
+		default: return "S-1-20=" + sppTag + " " + spTag + " " + sTag;
+		}
+	}
+
+	/** Names of the transition features of (s, sp, spp), in extraction order. */
+	public static void getTransitionFeatures(String sTag, String spTag,
+			String sppTag, List<String> features) {
+		for(int t : transitionTemplates) {
+			features.add(getTransitionName(t, sTag, spTag, sppTag));
+		}
+	}
+
+	/**
+	 * Adds the observation templates that fire for tok, without the offset
+	 * (8 * offset is added per position), and the atom each one reads, or
+	 * null.
+	 */
+	public static void getObservations(String tok, Locale locale,
+			TIntArrayList templates, List<String> atoms) {
+		templates.add(TK);
+		atoms.add(tok);
+		templates.add(LTK);
+		atoms.add(tok.toLowerCase(locale));
 		
 		if(tok.toUpperCase(locale).charAt(0) == tok.charAt(0)) {
-			add(fv, prefix + "Cap | " + tag, true);
+			templates.add(CAP);
+			atoms.add(null);
 		}
 		
 		if(RegexHelper.isNumerical(tok)) {
-			add(fv, prefix + "Dig | " + tag, true);
+			templates.add(DIG);
+			atoms.add(null);
 		}
 		if(RegexHelper.isPunctuation(tok)) {
-			add(fv, prefix + "Pun | " + tag, true);
+			templates.add(PUN);
+			atoms.add(null);
 		}
 		if(tok.indexOf('-') >= 0) {
-			add(fv, prefix + "has=- | " + tag, true);
+			templates.add(HYPHEN);
+			atoms.add(null);
 		}
 		if(tok.indexOf('.')  >= 0) {
-			add(fv, prefix + "has=. | " + tag, true);
+			templates.add(PERIOD);
+			atoms.add(null);
 		}
 		
 		int len = tok.length();
 		for(int l = 2; l <= 4 && l < len; l++) {
-			add(fv, prefix + "Suf=" + tok.substring(len - l, len) + " | " + tag, true);
+			templates.add(SUF);
+			atoms.add(tok.substring(len - l, len));
+		}
+	}
+
+	/** Name of emission template t (offset included) conjoined with tag. */
+	public static String getEmissionName(int t, String atom, String tag) {
+		String prefix = "P" + t / 8;
+		switch (t % 8) {
+		case TK: return prefix + "Tk=" + atom + " " + tag;
+		case LTK: return prefix + "LTk=" + atom + " " + tag;
+		case CAP: return prefix + "Cap | " + tag;
+		case DIG: return prefix + "Dig | " + tag;
+		case PUN: return prefix + "Pun | " + tag;
+		case HYPHEN: return prefix + "has=- | " + tag;
+		case PERIOD: return prefix + "has=. | " + tag;
+		default: return prefix + "Suf=" + atom + " | " + tag;
 		}
-		
-		nodeFeatures[offset][nid][s] = fv.keys();
-		Arrays.sort(nodeFeatures[offset][nid][s]);
-		nodeFeatureVal[offset][nid][s] = new double[fv.size()];
 	}
 }
@@ -0,0 +1,217 @@
+package features;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TObjectIntHashMap;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import data.Checkpoint;
+import data.RegexHelper;
+
+/**
+ * A trained POS model that can tag new text without the training corpus,
+ * read from a checkpoint written by the trainers (-checkpoint-path) or by
+ * TestHighOrderPos (-model-path): the state names, the "model" section
+ * written by writeModel(), the feature names and the parameters, which are
+ * read through a view of the file. Features of unseen words are spelled
+ * by the same template methods that name the training features of
+ * PosFOPotentialFunction or PosSOPotentialFunction; features that were not
+ * in the training alphabet get zero weight, like add(fv, feature, false)
+ * does.
+ *
+ * Node scores are kept in a ScoreCache over the word types seen so far, and
+ * are computed once per new word type by updateScoreCache().
+ */
+public class PosTaggingModel {
+	public int order, numStates, numTags;
+	public int initialState, initialStateSO, finalState;
+	String[] stateNames;
+	TObjectIntHashMap<String> tag2index;
+	TObjectIntHashMap<String> feature2index;
+	DoubleBuffer parameters;
+	double emissionFeatureValue;
+	Locale locale;
+
+	ArrayList<String> index2word;
+	TObjectIntHashMap<String> word2index;
+	ScoreCache cache;
+	int numCachedWords;
+
+	public PosTaggingModel(String modelPath) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(modelPath);
+		stateNames = checkpoint.getStrings("tags");
+		DoubleBuffer model = checkpoint.getDoubles("model");
+		order = (int) model.get(0);
+		numTags = (int) model.get(1);
+		initialState = (int) model.get(2);
+		initialStateSO = (int) model.get(3);
+		finalState = (int) model.get(4);
+		emissionFeatureValue = model.get(5);
+		String[] features = checkpoint.getStrings("features");
+		feature2index = new TObjectIntHashMap<String>(features.length);
+		for (int i = 0; i < features.length; i++) {
+			feature2index.put(features[i], i);
+		}
+		parameters = checkpoint.getDoubles("parameters");
+		String langName = getOption(checkpoint.getStrings("config"),
+				"-lang-name");
+		checkpoint.close();
+		if (parameters.capacity() != features.length) {
+			throw new IOException(String.format("%s has %d features and %d " +
+					"parameters.", modelPath, features.length,
+					parameters.capacity()));
+		}
+
+		numStates = stateNames.length;
+		tag2index = new TObjectIntHashMap<String>();
+		for (int s = 0; s < numStates; s++) {
+			tag2index.put(stateNames[s], s);
+		}
+		RegexHelper.setLanguage(langName);
+		locale = new Locale(langName);
+		index2word = new ArrayList<String>();
+		word2index = new TObjectIntHashMap<String>();
+		cache = new ScoreCache(0, numStates, order);
+		cacheEdgeScores();
+		numCachedWords = 0;
+		System.out.println(String.format("Loaded order-%d model with " +
+				"%d features and %d states from %s", order, features.length,
+				numStates, modelPath));
+	}
+
+	/** Value of an option in the "config" section, as Config prints it. */
+	private static String getOption(String[] config, String option)
+			throws IOException {
+		for (String line : config) {
+			String[] info = line.split("\t");
+			if (info.length == 2 && info[0].equals(option)) {
+				return info[1];
+			}
+		}
+		throw new IOException("Expecting " + option + " in the model config.");
+	}
+
+	public String getTag(int s) {
+		return stateNames[s];
+	}
+
+	public int lookupTag(String tag) {
+		return tag2index.contains(tag) ? tag2index.get(tag) : -1;
+	}
+
+	public String getWord(int wordID) {
+		return index2word.get(wordID);
+	}
+
+	/** Returns the ID of word, adding it to the vocabulary if it is new. */
+	public int mapWord(String word) {
+		if (word2index.contains(word)) {
+			return word2index.get(word);
+		}
+		int wid = index2word.size();
+		index2word.add(word);
+		word2index.put(word, wid);
+		return wid;
+	}
+
+	/**
+	 * Returns the score tables for all words mapped so far. Call
+	 * updateScoreCache() after mapping new words and before decoding them.
+	 */
+	public ScoreCache getScoreCache() {
+		return cache;
+	}
+
+	/** Computes the node scores of the words mapped since the last call. */
+	public void updateScoreCache() {
+		int numWords = index2word.size();
+		if (numWords == numCachedWords) {
+			return;
+		}
+		if (numWords > cache.numWordTypes) {
+			cache.resize(Math.max(numWords, cache.numWordTypes * 3 / 2));
+		}
+		double[] table = cache.nodeTable();
+		TIntArrayList templates = new TIntArrayList();
+		ArrayList<String> atoms = new ArrayList<String>();
+		ArrayList<String> features = new ArrayList<String>();
+		for (int wid = numCachedWords; wid < numWords; wid++) {
+			String tok = index2word.get(wid);
+			templates.resetQuick();
+			atoms.clear();
+			if (order == 1) {
+				PosFOPotentialFunction.getObservations(tok, templates, atoms);
+			} else {
+				PosSOPotentialFunction.getObservations(tok, locale, templates,
+						atoms);
+			}
+			for (int offset = 0; offset < 3; offset++) {
+				for (int s = 0; s < numStates; s++) {
+					// same (offset, state) pairs as extracted in training
+					if (s >= numTags && !(offset == 0 && s == finalState) &&
+							!(offset == 2 && s == initialState)) {
+						continue;
+					}
+					features.clear();
+					for (int k = 0; k < templates.size(); k++) {
+						int t = 8 * offset + templates.get(k);
+						features.add(order == 1 ?
+								PosFOPotentialFunction.getEmissionName(t,
+										atoms.get(k), stateNames[s]) :
+								PosSOPotentialFunction.getEmissionName(t,
+										atoms.get(k), stateNames[s]));
+					}
+					table[cache.nodeIndex(offset, wid, s)] =
+							emissionFeatureValue * sum(features);
+				}
+			}
+		}
+		numCachedWords = numWords;
+	}
+
+	/**
+	 * Scores the transitions that training extracted features for; the
+	 * others kept no features and score 0, as they did in training.
+	 * Training adds the conjunction of all states of a transition (the last
+	 * transition feature) exactly for the transitions it extracts.
+	 */
+	private void cacheEdgeScores() {
+		double[] table = cache.edgeTable();
+		ArrayList<String> features = new ArrayList<String>();
+		for (int s = 0; s < numStates; s++) {
+			for (int sp = 0; sp < numStates; sp++) {
+				if (order == 1) {
+					features.clear();
+					PosFOPotentialFunction.getTransitionFeatures(stateNames[s],
+							stateNames[sp], features);
+					table[s * numStates + sp] = transitionScore(features);
+					continue;
+				}
+				for (int spp = 0; spp < numStates; spp++) {
+					features.clear();
+					PosSOPotentialFunction.getTransitionFeatures(stateNames[s],
+							stateNames[sp], stateNames[spp], features);
+					table[(s * numStates + sp) * numStates + spp] =
+							transitionScore(features);
+				}
+			}
+		}
+	}
+
+	private double transitionScore(ArrayList<String> features) {
+		String conjunction = features.get(features.size() - 1);
+		return feature2index.contains(conjunction) ? sum(features) : 0;
+	}
+
+	private double sum(ArrayList<String> features) {
+		double r = 0;
+		for (String feature : features) {
+			if (feature2index.contains(feature)) {
+				r += parameters.get(feature2index.get(feature));
+			}
+		}
+		return r;
+	}
+}
@@ -0,0 +1,106 @@
+package features;
+
+/**
+ * Potentials precomputed for one parameter vector. Node score parts only
+ * depend on (offset, word type, state) and edge scores only on the state
+ * tuple, so the lattices can read them from these tables instead of redoing
+ * the sparse dot products for every sentence position.
+ *
+ * The tables are filled by the potential functions (cacheScores,
+ * cacheNodeScores, cacheEdgeScores) and must not be refilled while lattices
+ * are reading from them.
+ */
+public class ScoreCache {
+	final int numStates, order;
+	int numWordTypes;
+	double[] nodeScores; // (offset * numWordTypes + wordType) * numStates + s
+	double[] edgeScores; // s * numStates + sp, or (s * ns + sp) * ns + spp
+
+	ScoreCache(int numWordTypes, int numStates, int order) {
+		this.numWordTypes = numWordTypes;
+		this.numStates = numStates;
+		this.order = order;
+	}
+
+	double[] nodeTable() {
+		if (nodeScores == null) {
+			nodeScores = new double[3 * numWordTypes * numStates];
+		}
+		return nodeScores;
+	}
+
+	double[] edgeTable() {
+		if (edgeScores == null) {
+			int size = numStates * numStates;
+			edgeScores = new double[order == 1 ? size : size * numStates];
+		}
+		return edgeScores;
+	}
+
+	/**
+	 * Makes room for more word types, keeping the node scores of the existing
+	 * ones. Used when the vocabulary grows while tagging new text.
+	 */
+	void resize(int newNumWordTypes) {
+		if (nodeScores != null && newNumWordTypes > numWordTypes) {
+			double[] grown = new double[3 * newNumWordTypes * numStates];
+			int size = numWordTypes * numStates;
+			for (int offset = 0; offset < 3; offset++) {
+				System.arraycopy(nodeScores, offset * size, grown,
+						offset * newNumWordTypes * numStates, size);
+			}
+			nodeScores = grown;
+		}
+		numWordTypes = Math.max(numWordTypes, newNumWordTypes);
+	}
+
+	int nodeIndex(int offset, int wordType, int s) {
+		return (offset * numWordTypes + wordType) * numStates + s;
+	}
+
+	/** Node score of state s at position pos of a sentence with tokens toks. */
+	public double nodeScore(int[] toks, int pos, int s) {
+		double r = 0;
+		if (pos > 0) {
+			r += nodeScores[nodeIndex(0, toks[pos-1], s)];
+		}
+		if (pos < toks.length) {
+			r += nodeScores[nodeIndex(1, toks[pos], s)];
+		}
+		if (pos + 1 < toks.length) {
+			r += nodeScores[nodeIndex(2, toks[pos+1], s)];
+		}
+		return r;
+	}
+
+	/**
+	 * Node scores of all states at position pos, into scores[s]. Reads the
+	 * three rows once instead of redoing the lookups for every state.
+	 */
+	public void nodeScores(int[] toks, int pos, double[] scores) {
+		int prev = (pos > 0 ? nodeIndex(0, toks[pos-1], 0) : -1);
+		int curr = (pos < toks.length ? nodeIndex(1, toks[pos], 0) : -1);
+		int next = (pos + 1 < toks.length ? nodeIndex(2, toks[pos+1], 0) : -1);
+		for (int s = 0; s < numStates; s++) {
+			double r = 0;
+			if (prev >= 0) {
+				r += nodeScores[prev + s];
+			}
+			if (curr >= 0) {
+				r += nodeScores[curr + s];
+			}
+			if (next >= 0) {
+				r += nodeScores[next + s];
+			}
+			scores[s] = r;
+		}
+	}
+
+	public double edgeScore(int s, int sp) {
+		return edgeScores[s * numStates + sp];
+	}
+
+	public double edgeScore(int s, int sp, int spp) {
+		return edgeScores[(s * numStates + sp) * numStates + spp];
+	}
+}
@@ -2,18 +2,29 @@ package features;
 
 import data.AbstractCorpus;
 import data.AbstractSequence;
+import data.Checkpoint;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntIntHashMap;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
 import gnu.trove.TObjectIntHashMap;
 
-public class SecondOrderPotentialFunction {
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import parallel.SparseAccumulator;
+
+public abstract class SecondOrderPotentialFunction {
 	protected AbstractCorpus corpus;
 	protected int[][][][] edgeFeatures; // state-id , prev-state
-	protected int[][][][] nodeFeatures; // node-id, state-id
 	protected double[][][][] edgeFeatureVal;
-	protected double[][][][] nodeFeatureVal;
+	protected EmissionFeatures emissions;
 	
 	protected TObjectIntHashMap<String> feature2index;
-	protected TIntIntHashMap index2count;
+	protected TLongIntHashMap key2index; // FeatureKeys to feature ID + 1
+	protected TIntArrayList index2count;
+	protected double emissionFeatureValue;
 	protected int numStates, numTStates, numWordTypes, S0, S00, SN;
 	
 	protected SecondOrderPotentialFunction(AbstractCorpus corpus) {
@@ -29,12 +40,12 @@ public class SecondOrderPotentialFunction {
 		System.out.println("Initial state 2nd order:\t" + S00);
 		System.out.println("Final state:\t" + SN);
 		feature2index = new TObjectIntHashMap<String>();
-		index2count = new TIntIntHashMap();
+		key2index = new TLongIntHashMap(FeatureKeys.hashing);
+		index2count = new TIntArrayList();
 	
 		edgeFeatures = new int[numStates][numStates][numStates][];
-		nodeFeatures = new int[3][numWordTypes][numStates][];
+		emissions = new EmissionFeatures(numWordTypes, numStates);
 		edgeFeatureVal = new double[numStates][numStates][numStates][];
-		nodeFeatureVal = new double[3][numWordTypes][numStates][];
 	}
 	
 	protected void assignFeatureValues(boolean rescaleFeatures) {
@@ -50,13 +61,13 @@ public class SecondOrderPotentialFunction {
 				int sp = (i == 0 ? S0 : tags[i-1]);
 				int spp = (i == 0 ? S00 : (i == 1 ? S0 : tags[i-2]));
 				if (i > 0) {
-					emissionFeatureNorm += nodeFeatures[0][toks[i-1]][s].length;
+					emissionFeatureNorm += emissions.numFeatures(0, toks[i-1], s);
 				}
 				if (i < instance.length) {
-					emissionFeatureNorm += nodeFeatures[1][toks[i]][s].length;
+					emissionFeatureNorm += emissions.numFeatures(1, toks[i], s);
 				}
 				if (i < instance.length - 1) {
-					emissionFeatureNorm += nodeFeatures[2][toks[i+1]][s].length;
+					emissionFeatureNorm += emissions.numFeatures(2, toks[i+1], s);
 				}
 				transitionFeatureNorm += edgeFeatures[s][sp][spp].length;
 			}
@@ -64,13 +75,14 @@ public class SecondOrderPotentialFunction {
 		// assign feature values
 		System.out.println(String.format("\nExtracted %d features." +
 				" #Transiton:\t%d\t#Emission:\t%d", 
-				feature2index.size(), (int) transitionFeatureNorm,
+				getNumFeatures(), (int) transitionFeatureNorm,
 				(int) emissionFeatureNorm));
 		double scaling = 1.0;
 		if (rescaleFeatures) {
 			scaling =  emissionFeatureNorm / transitionFeatureNorm;
 			System.out.println("divide emission feature values by:\t" + scaling);
 		}
+		emissionFeatureValue = 1.0 / scaling;
 		
 		for (int i = 0; i < numTStates; i++) {
 			fill(edgeFeatureVal[i][S0][S00], 1.0);
@@ -83,15 +95,7 @@ public class SecondOrderPotentialFunction {
 				}
 			}
 		}
-		for (int i = 0; i < numWordTypes; i++) {
-			fill(nodeFeatureVal[0][i][SN], 1.0 / scaling);
-			fill(nodeFeatureVal[2][i][S0], 1.0 / scaling);
-			for (int j = 0; j < numTStates; j++) {
-				fill(nodeFeatureVal[0][i][j], 1.0 / scaling);
-				fill(nodeFeatureVal[1][i][j], 1.0 / scaling);
-				fill(nodeFeatureVal[2][i][j], 1.0 / scaling);
-			}
-		}
+		emissions.value = emissionFeatureValue;
 	}
 
 	private void fill(double[] fv, double d) {
@@ -106,17 +110,185 @@ public class SecondOrderPotentialFunction {
 			fid = feature2index.get(feature);
 		}
 		else if (update) {
-			fid = feature2index.size();
+			fid = getNumFeatures();
 			feature2index.put(feature, fid);
+			index2count.add(0);
 		}
 		if (fid >= 0) {
 			fv.adjustOrPutValue(fid, 1, 1);
-			index2count.adjustOrPutValue(fid, 1, 1);
+			index2count.set(fid, index2count.getQuick(fid) + 1);
+		}
+	}
+
+	/** Same as above for a feature packed by FeatureKeys. */
+	protected void add(TIntIntHashMap fv, long key, boolean update) {
+		int fid = key2index.get(key) - 1; // IDs are stored plus one
+		if (fid < 0 && update) {
+			fid = getNumFeatures();
+			key2index.put(key, fid + 1);
+			index2count.add(0);
+		}
+		if (fid >= 0) {
+			fv.adjustOrPutValue(fid, 1, 1);
+			index2count.set(fid, index2count.getQuick(fid) + 1);
+		}
+	}
+
+	/** Name of a feature packed by FeatureKeys, emission ones included. */
+	protected abstract String getFeatureName(long key);
+
+	/**
+	 * Sets the emission observations of word type nid at offset, packed by
+	 * FeatureKeys with the state left 0.
+	 */
+	protected void setObservations(int offset, int nid,
+			TLongArrayList observations) {
+		emissions.setObservations(offset, nid, observations);
+	}
+
+	/**
+	 * Adds the emission features of state s for the observations of word type
+	 * nid at offset. Feature IDs are given out in observation order.
+	 */
+	protected void addEmissionFeatures(int offset, int nid, int s) {
+		for (int obs : emissions.nodeObservations[offset][nid]) {
+			int fid = emissions.observationFeatures[obs][s];
+			if (fid < 0) {
+				fid = getNumFeatures();
+				emissions.addFeature(obs, s, fid);
+				index2count.add(0);
+			}
+			index2count.set(fid, index2count.getQuick(fid) + 1);
 		}
 	}
 
 	public int getNumFeatures() {
-		return feature2index.size();
+		return feature2index.size() + key2index.size() +
+				emissions.getNumFeatures();
+	}
+
+	/** Returns the feature strings, indexed by feature ID. */
+	public String[] getFeatureNames() {
+		String[] index2feature = new String[getNumFeatures()];
+		for (Object feature : feature2index.keys()) {
+			index2feature[feature2index.get((String) feature)] =
+					(String) feature;
+		}
+		for (long key : key2index.keys()) {
+			index2feature[key2index.get(key) - 1] = getFeatureName(key);
+		}
+		for (int obs = 0; obs < emissions.getNumObservations(); obs++) {
+			long observation = emissions.getObservation(obs);
+			int[] fids = emissions.observationFeatures[obs];
+			for (int s = 0; s < numStates; s++) {
+				if (fids[s] >= 0) {
+					index2feature[fids[s]] = getFeatureName(observation | s);
+				}
+			}
+		}
+		return index2feature;
+	}
+
+	/**
+	 * Hash of the feature alphabet from the feature IDs and their packed keys
+	 * (or string hashes), without building any feature names. It tells apart
+	 * models extracted with different templates, states or vocabularies; atom
+	 * IDs are part of the keys, so it is meant for the same corpus files.
+	 */
+	public long getAlphabetHash() {
+		long hash = getNumFeatures();
+		for (Object feature : feature2index.keys()) {
+			hash += FeatureKeys.mix(feature.hashCode() * 31L +
+					feature2index.get((String) feature));
+		}
+		for (long key : key2index.keys()) {
+			hash += FeatureKeys.mix(FeatureKeys.mix(key) + key2index.get(key));
+		}
+		for (int obs = 0; obs < emissions.getNumObservations(); obs++) {
+			long observation = emissions.getObservation(obs);
+			int[] fids = emissions.observationFeatures[obs];
+			for (int s = 0; s < numStates; s++) {
+				if (fids[s] >= 0) {
+					hash += FeatureKeys.mix(FeatureKeys.mix(observation | s) +
+							fids[s] + 1);
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Adds the model to a checkpoint: "model" (order, number of tags,
+	 * initial, second-order initial and final state, emission feature
+	 * value), the feature names, the size and hash of the alphabet, and the
+	 * parameters.
+	 */
+	public void writeModel(Checkpoint.Writer writer, double[] parameters)
+			throws IOException {
+		writer.writeDoubles("model", new double[] { 2, numTStates, S0,
+				S00, SN, emissionFeatureValue });
+		writer.writeStrings("features", getFeatureNames());
+		writer.writeLongs("alphabet", new long[] { getNumFeatures(),
+				getAlphabetHash() });
+		writer.writeDoubles("parameters", parameters);
+	}
+
+	/**
+	 * Checks that a checkpoint was written for the tags and feature alphabet
+	 * of this model, so its parameters and state can be read into it.
+	 */
+	public void checkModel(Checkpoint checkpoint) throws IOException {
+		checkpoint.checkTags(corpus);
+		LongBuffer alphabet = checkpoint.getLongs("alphabet");
+		if (alphabet.get(0) != getNumFeatures() ||
+				alphabet.get(1) != getAlphabetHash()) {
+			throw new IOException(String.format("Feature alphabet of the " +
+					"checkpoint (%d features) does not match the current " +
+					"model (%d features).", alphabet.get(0), getNumFeatures()));
+		}
+	}
+	
+	public ScoreCache createScoreCache() {
+		return new ScoreCache(numWordTypes, numStates, 2);
+	}
+	
+	public void cacheScores(ScoreCache cache, double[] parameters) {
+		cacheNodeScores(cache, parameters);
+		cacheEdgeScores(cache, parameters);
+	}
+	
+	public void cacheNodeScores(ScoreCache cache, double[] parameters) {
+		emissions.cacheScores(cache, parameters);
+	}
+	
+	public void cacheEdgeScores(ScoreCache cache, double[] parameters) {
+		computeEdgeScores(parameters, cache.edgeTable());
+	}
+	
+	/**
+	 * Edge scores of all state triples, into
+	 * scores[(s * numStates + sp) * numStates + spp].
+	 */
+	public void computeEdgeScores(double[] parameters, double[] scores) {
+		for (int s = 0; s < numStates; s++) {
+			for (int sp = 0; sp < numStates; sp++) {
+				for (int spp = 0; spp < numStates; spp++) {
+					scores[(s * numStates + sp) * numStates + spp] = dot(
+							edgeFeatures[s][sp][spp],
+							edgeFeatureVal[s][sp][spp], parameters);
+				}
+			}
+		}
+	}
+	
+	private double dot(int[] fid, double[] fv, double[] parameters) {
+		double r = 0;
+		if (fid != null) {
+			for (int j = 0; j < fid.length; j++) {
+				r += parameters[fid[j]] * fv[j];
+			}
+		}
+		return r;
 	}
 	
 	public double computeScore(int sid, int pos, int s, int sp, int spp,
@@ -139,39 +311,38 @@ public class SecondOrderPotentialFunction {
 	public double computeNodeScore(int sid, int pos, int s,
 			double[] parameters) {
 		double r = 0;
-		int[] fid;
-		double[] fv;
 		int[] toks = corpus.getInstance(sid).tokens;
 		if (pos > 0) {
-			fid = nodeFeatures[0][toks[pos-1]][s];
-			if (fid != null) {
-				fv = nodeFeatureVal[0][toks[pos-1]][s];
-				for (int j = 0; j < fid.length; j++) {
-					r += parameters[fid[j]] * fv[j];
-				}
-			}
+			r += emissions.score(0, toks[pos-1], s, parameters);
 		}
 		if (pos < toks.length) {
-			fid = nodeFeatures[1][toks[pos]][s];
-			if (fid != null) {
-				fv = nodeFeatureVal[1][toks[pos]][s];
-				for (int j = 0; j < fid.length; j++) {
-					r += parameters[fid[j]] * fv[j];
-				}
-			}
+			r += emissions.score(1, toks[pos], s, parameters);
 		}
 		if (pos + 1 < toks.length) {
-			fid = nodeFeatures[2][toks[pos+1]][s];
-			if (fid != null) {
-				fv = nodeFeatureVal[2][toks[pos+1]][s];
-				for (int j = 0; j < fid.length; j++) {
-					r += parameters[fid[j]] * fv[j];
-				}
-			} 
-		}		
+			r += emissions.score(2, toks[pos+1], s, parameters);
+		}
 		return r;
 	}
 
+	/**
+	 * Node scores of all states at position pos, into scores[s], with one
+	 * pass over the observations at each offset instead of one per state.
+	 */
+	public void computeNodeScores(int sid, int pos, double[] parameters,
+			double[] scores) {
+		Arrays.fill(scores, 0, numStates, 0);
+		int[] toks = corpus.getInstance(sid).tokens;
+		if (pos > 0) {
+			emissions.addScores(0, toks[pos-1], parameters, scores, 0);
+		}
+		if (pos < toks.length) {
+			emissions.addScores(1, toks[pos], parameters, scores, 0);
+		}
+		if (pos + 1 < toks.length) {
+			emissions.addScores(2, toks[pos+1], parameters, scores, 0);
+		}
+	}
+
 	public void addToEmpirical(int sid, int pos, int s, int sp, int spp,
 			double[] empirical, double marginal) {	
 		if (marginal == 0 || Double.isInfinite(marginal) ||
@@ -187,32 +358,54 @@ public class SecondOrderPotentialFunction {
 				empirical[fid[j]] += marginal * fv[j];
 			}
 		}
-		if(pos > 0) { 
-			fid = nodeFeatures[0][toks[pos-1]][s];
-			if (fid != null) {
-				fv = nodeFeatureVal[0][toks[pos-1]][s];
-				for (int j = 0; j < fid.length; j++) {
-					empirical[fid[j]] += marginal * fv[j];
-				}
-			}
+		if (pos > 0) {
+			emissions.addToEmpirical(0, toks[pos-1], s, empirical, marginal);
 		}
 		if (pos < toks.length) {
-			fid = nodeFeatures[1][toks[pos]][s];
-			if (fid != null) {
-				fv = nodeFeatureVal[1][toks[pos]][s];
-				for (int j = 0; j < fid.length; j++) {
-					empirical[fid[j]] += marginal * fv[j];
-				}
-			}
+			emissions.addToEmpirical(1, toks[pos], s, empirical, marginal);
 		}
 		if (pos + 1 < toks.length) {
-			fid =  nodeFeatures[2][toks[pos+1]][s];
-			if (fid != null) {
-				fv = nodeFeatureVal[2][toks[pos+1]][s];
-				for (int j = 0; j < fid.length; j++) {
-					empirical[fid[j]] += marginal * fv[j];
-				}
-			} 
+			emissions.addToEmpirical(2, toks[pos+1], s, empirical, marginal);
+		}
+	}
+
+	public void addToEmpirical(int sid, int pos, int s, int sp, int spp,
+			SparseAccumulator empirical, double marginal) {
+		addTransitionsToEmpirical(s, sp, spp, empirical, marginal);
+		addEmissionsToEmpirical(sid, pos, s, empirical, marginal);
+	}
+
+	/** Adds the transition features of (s, sp, spp) only. */
+	public void addTransitionsToEmpirical(int s, int sp, int spp,
+			SparseAccumulator empirical, double marginal) {
+		if (marginal == 0 || Double.isInfinite(marginal) ||
+				Double.isNaN(marginal)) {
+			return;
+		}
+		empirical.add(edgeFeatures[s][sp][spp],
+				edgeFeatureVal[s][sp][spp], marginal);
+	}
+
+	/**
+	 * Adds the emission features of state s at position pos only. Summing the
+	 * transition marginals into s first lets callers add these once per
+	 * state instead of once per transition.
+	 */
+	public void addEmissionsToEmpirical(int sid, int pos, int s,
+			SparseAccumulator empirical, double marginal) {
+		if (marginal == 0 || Double.isInfinite(marginal) ||
+				Double.isNaN(marginal)) {
+			return;
+		}
+		int[] toks = corpus.getInstance(sid).tokens;
+		if (pos > 0) {
+			emissions.addToEmpirical(0, toks[pos-1], s, empirical, marginal);
+		}
+		if (pos < toks.length) {
+			emissions.addToEmpirical(1, toks[pos], s, empirical, marginal);
+		}
+		if (pos + 1 < toks.length) {
+			emissions.addToEmpirical(2, toks[pos+1], s, empirical, marginal);
 		}
 	}
 }
@@ -1,70 +1,148 @@
 package graph;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
+/**
+ * The neighbours of one node as a bounded min-heap of (neighbor, weight)
+ * pairs in primitive arrays, so that adding a candidate does not allocate.
+ * The heap keeps the maxLength heaviest edges. It sifts exactly like the
+ * java.util.PriorityQueue it replaces, so among equal weights the same
+ * edges are kept and edges are visited in the same order.
+ *
+ * After freeze(), membership is tested by binary search over the sorted
+ * neighbour IDs, and symAdd() may grow the list past maxLength.
+ */
 public class EdgeList {
-	PriorityQueue<Edge> queue;
-	HashSet<Integer> set;
-	int maxLength;
-	
+	int[] neighbors;
+	double[] weights;
+	int size, maxLength;
+	int[] sorted;
+	int numSorted;
+
 	public EdgeList(int maxLength) {
-		queue = new PriorityQueue<Edge>();
-		set = new HashSet<Integer>();
 		this.maxLength = maxLength;
+		int capacity = Math.max(1, Math.min(maxLength, 16));
+		neighbors = new int[capacity];
+		weights = new double[capacity];
+		size = 0;
+		sorted = null;
+		numSorted = 0;
 	}
-	
+
 	public void freeze() {
-		for (Iterator<Edge> itr = queue.iterator(); itr.hasNext(); ) {
-			set.add(itr.next().neighbor);
-		}
+		sorted = Arrays.copyOf(neighbors, Math.max(1, size));
+		Arrays.sort(sorted, 0, size);
+		numSorted = size;
 	}
-	
+
 	public boolean contains(int neighbor) {
-		return set != null && set.contains(neighbor);
+		return sorted != null &&
+				Arrays.binarySearch(sorted, 0, numSorted, neighbor) >= 0;
 	}
-	
-	public void add(Edge e) {
-		if(queue.size() < maxLength) {
-			queue.add(e);
+
+	/** Returns true if the edge made it into the list. */
+	public boolean add(int neighbor, double weight) {
+		if (size < maxLength) {
+			offer(neighbor, weight);
+			return true;
 		}
-		else if(e.weight > queue.peek().weight) {
-			queue.poll();
-			queue.add(e);
+		else if (weight > weights[0]) {
+			poll();
+			offer(neighbor, weight);
+			return true;
 		}
+		return false;
 	}
-	
-	public void symAdd(Edge e) {
-		if (!set.contains(e.neighbor)) {
-			queue.add(e);
-			set.add(e.neighbor);
+
+	public void symAdd(int neighbor, double weight) {
+		int k = Arrays.binarySearch(sorted, 0, numSorted, neighbor);
+		if (k >= 0) {
+			return;
 		}
+		k = -k - 1;
+		if (numSorted == sorted.length) {
+			sorted = Arrays.copyOf(sorted, numSorted * 2);
+		}
+		System.arraycopy(sorted, k, sorted, k + 1, numSorted - k);
+		sorted[k] = neighbor;
+		++ numSorted;
+		offer(neighbor, weight);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
 	}
-	
-	public Iterator<Edge> iterator()
-	{
-		return queue.iterator();
+
+	/** Neighbour of the k-th edge, in heap order. */
+	public int neighbor(int k) {
+		return neighbors[k];
 	}
-	
-	public boolean isEmpty()
-	{
-		return queue.isEmpty();
+
+	public double weight(int k) {
+		return weights[k];
 	}
-	
-	public Edge poll()
-	{
-		Edge e = queue.poll();
-		set.remove(e);
-		return e;
+
+	/** Weight of the lightest edge; the list must not be empty. */
+	public double minWeight() {
+		return weights[0];
 	}
-	
-	public Edge peek()
-	{
-		return queue.peek();
+
+	/** Orders edges by weight; distinct neighbours never compare equal. */
+	private static int compare(int n0, double w0, int n1, double w1) {
+		if (n0 == n1) {
+			return 0;
+		}
+		return w0 < w1 ? -1 : 1;
 	}
 
-	public int size() {
-		return queue.size();
+	private void offer(int neighbor, double weight) {
+		if (size == neighbors.length) {
+			int capacity = size * 2;
+			neighbors = Arrays.copyOf(neighbors, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+		}
+		int k = size++;
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			if (compare(neighbor, weight, neighbors[parent],
+					weights[parent]) >= 0) {
+				break;
+			}
+			neighbors[k] = neighbors[parent];
+			weights[k] = weights[parent];
+			k = parent;
+		}
+		neighbors[k] = neighbor;
+		weights[k] = weight;
+	}
+
+	private void poll() {
+		int s = --size;
+		if (s == 0) {
+			return;
+		}
+		int neighbor = neighbors[s];
+		double weight = weights[s];
+		int k = 0, half = s >>> 1;
+		while (k < half) {
+			int child = 2 * k + 1, right = child + 1;
+			if (right < s && compare(neighbors[child], weights[child],
+					neighbors[right], weights[right]) > 0) {
+				child = right;
+			}
+			if (compare(neighbor, weight, neighbors[child],
+					weights[child]) <= 0) {
+				break;
+			}
+			neighbors[k] = neighbors[child];
+			weights[k] = weights[child];
+			k = child;
+		}
+		neighbors[k] = neighbor;
+		weights[k] = weight;
 	}
-}
\ No newline at end of file
+}
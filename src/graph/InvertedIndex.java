@@ -0,0 +1,96 @@
+package graph;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * Inverted index from feature ID to the (node, value) postings of the nodes
+ * that have the feature, for exact cosine k-NN over sparse vectors. The dot
+ * products of a node with all other nodes are accumulated by walking the
+ * postings of its features, so only nodes sharing at least one feature are
+ * ever touched.
+ *
+ * Postings are stored in flat arrays: the postings of feature f are
+ * [start[f], start[f+1]), in ascending node order.
+ */
+public class InvertedIndex {
+	final int numNodes, numFeatures;
+	private int[] start;
+	private int[] postingNodes;
+	private double[] postingVals;
+	private double[] maxAbsVal;
+
+	public InvertedIndex(int[][] features, double[][] featureVals) {
+		numNodes = features.length;
+		int maxFeature = -1;
+		for (int[] fv : features) {
+			for (int f : fv) {
+				maxFeature = Math.max(maxFeature, f);
+			}
+		}
+		numFeatures = maxFeature + 1;
+		start = new int[numFeatures + 1];
+		for (int[] fv : features) {
+			for (int f : fv) {
+				++ start[f + 1];
+			}
+		}
+		for (int f = 0; f < numFeatures; f++) {
+			start[f + 1] += start[f];
+		}
+		postingNodes = new int[start[numFeatures]];
+		postingVals = new double[start[numFeatures]];
+		maxAbsVal = new double[numFeatures];
+		int[] next = new int[numFeatures];
+		System.arraycopy(start, 0, next, 0, numFeatures);
+		for (int i = 0; i < numNodes; i++) {
+			for (int j = 0; j < features[i].length; j++) {
+				int f = features[i][j];
+				int p = next[f]++;
+				postingNodes[p] = i;
+				postingVals[p] = featureVals[i][j];
+				maxAbsVal[f] = Math.max(maxAbsVal[f],
+						Math.abs(featureVals[i][j]));
+			}
+		}
+	}
+
+	public int numPostings() {
+		return postingNodes.length;
+	}
+
+	/**
+	 * Adds the dot products of node i with every node sharing a feature with
+	 * it to acc, and appends those nodes (excluding i) to touched. Features
+	 * are visited in ascending order, so each acc[j] is summed in the same
+	 * order as a merge of the two sorted vectors and is bit-for-bit equal to
+	 * it. lastSeen is a per-caller scratch array filled with -1, acc must be
+	 * zero at the touched nodes and is left for the caller to clear.
+	 *
+	 * With pruneBound > 0, features whose largest possible contribution
+	 * |v_i(f)| * max_j |v_j(f)| is below the bound are skipped. Those are
+	 * mostly very frequent features with small PMI values; the result is
+	 * then approximate.
+	 */
+	public void accumulate(int i, int[] features, double[] featureVals,
+			double pruneBound, double[] acc, int[] lastSeen,
+			TIntArrayList touched) {
+		for (int k = 0; k < features.length; k++) {
+			int f = features[k];
+			double v = featureVals[k];
+			if (pruneBound > 0 && Math.abs(v) * maxAbsVal[f] < pruneBound) {
+				continue;
+			}
+			for (int p = start[f]; p < start[f + 1]; p++) {
+				int j = postingNodes[p];
+				if (j == i) {
+					continue;
+				}
+				if (lastSeen[j] != i) {
+					lastSeen[j] = i;
+					touched.add(j);
+				}
+				acc[j] += v * postingVals[p];
+			}
+		}
+	}
+}
@@ -1,11 +1,17 @@
 package graph;
 
+import gnu.trove.TDoubleArrayList;
+import gnu.trove.TIntArrayList;
+
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Random;
+
+import data.SparseSimilarityGraph;
 
 public class KNNGraphConstructer {
 	CountDictionary ngramCounts;
@@ -18,6 +24,13 @@ public class KNNGraphConstructer {
 	String graphPath, ngramPath;
 	int numThreads;
 	double similarityThreshold;
+	LSHIndex lsh;
+	InvertedIndex index;
+	double pruneBound;
+	int numRefineIters;
+	int recallSampleSize;
+	long randomSeed;
+	long numCandidates, numUpdates;
 	
 	public KNNGraphConstructer(CountDictionary ngramCounts, int[][] features,
 			double[][] featureVals, int numNeighbors, boolean mutualKNN,
@@ -34,13 +47,62 @@ public class KNNGraphConstructer {
 		
 		this.graphPath = graphPath;
 		this.ngramPath = ngramPath;
+		this.lsh = null;
+		this.index = null;
+		this.numRefineIters = 0;
+		this.recallSampleSize = 0;
+	}
+	
+	/**
+	 * Computes similarities through an inverted index from features to
+	 * nodes, so only pairs sharing a feature are scored. The graph is the
+	 * same as with the all-pairs scan. With pruneBound > 0, features that
+	 * can add less than pruneBound to a similarity are skipped when
+	 * collecting candidates, which is faster but approximate.
+	 */
+	public void useInvertedIndex(double pruneBound) {
+		long startTime = System.currentTimeMillis();
+		index = new InvertedIndex(features, featureVals);
+		this.pruneBound = pruneBound;
+		System.out.println(String.format("Built inverted index with %d " +
+				"features and %d postings in %d ms.", index.numFeatures,
+				index.numPostings(), System.currentTimeMillis() - startTime));
+	}
+	
+	/**
+	 * Searches neighbours among the LSH candidates of each node instead of
+	 * all nodes, then improves the lists for up to refineIters rounds by
+	 * also comparing each node with the neighbours of its neighbours. More
+	 * tables and rounds give higher recall, more bits give smaller buckets
+	 * and a faster search.
+	 */
+	public void useLSH(int numTables, int numBits, int refineIters,
+			long seed) {
+		long startTime = System.currentTimeMillis();
+		lsh = new LSHIndex(features, featureVals, numTables, numBits, seed);
+		numRefineIters = refineIters;
+		System.out.println(String.format("Built LSH index with %d tables " +
+				"of %d bits in %d ms.", numTables, numBits,
+				System.currentTimeMillis() - startTime));
+	}
+	
+	/**
+	 * Compares the neighbours of sampleSize random nodes with their exact
+	 * k nearest neighbours after the graph is built, and prints the recall.
+	 */
+	public void setRecallSample(int sampleSize, long seed) {
+		this.recallSampleSize = sampleSize;
+		this.randomSeed = seed;
 	}
 	
 	public void run() throws UnsupportedEncodingException,
 		FileNotFoundException, IOException {
 		System.out.println(String.format("Starting to build graph with " +
-				"%d nodes, and %d neighbors with %s KNN method. ",
-				numNodes, numNeighbors, (mutualKNN ? "mutual" : "symmetric")));
+				"%d nodes, and %d neighbors with %s KNN method (%s search). ",
+				numNodes, numNeighbors, (mutualKNN ? "mutual" : "symmetric"),
+				(lsh != null ? "LSH" : index != null ? "inverted index" :
+					"all-pairs")));
+		long startTime = System.currentTimeMillis();
 		
 		edges = new EdgeList[numNodes];
 		for(int i = 0; i < numNodes; i++) {
@@ -60,12 +122,121 @@ public class KNNGraphConstructer {
 				threads[i].join();
 			} catch (InterruptedException e) { }
 		}
+		System.out.println(String.format("Neighbour search took %d ms.",
+				System.currentTimeMillis() - startTime));
+		if (index != null) {
+			System.out.println(String.format("Average nodes sharing a " +
+					"feature: %.1f", 1.0 * numCandidates / numNodes));
+		}
+		if (lsh != null) {
+			System.out.println(String.format("Average LSH candidates " +
+					"per node: %.1f", 1.0 * numCandidates / numNodes));
+			refineNeighbors();
+			System.out.println(String.format("Neighbour search and " +
+					"refinement took %d ms.",
+					System.currentTimeMillis() - startTime));
+		}
+		if (recallSampleSize > 0) {
+			evaluateRecall();
+		}
 		symmetrifyAndSaveGraph();
 	}
 
 	protected synchronized void print(String string) {
 		System.out.print(string);
 	}
+	
+	protected synchronized void addCandidates(long count, long updates) {
+		numCandidates += count;
+		numUpdates += updates;
+	}
+	
+	/**
+	 * Rounds of neighbour-of-neighbour search: each node is compared with
+	 * the neighbours and reverse neighbours of its current neighbours and
+	 * reverse neighbours. Stops early once a round changes less than 0.1%
+	 * of the neighbour lists.
+	 */
+	private void refineNeighbors() {
+		for (int iter = 0; iter < numRefineIters; iter++) {
+			int[][] neighbors = new int[numNodes][];
+			TIntArrayList[] reverse = new TIntArrayList[numNodes];
+			for (int i = 0; i < numNodes; i++) {
+				neighbors[i] = new int[edges[i].size()];
+				for (int k = 0; k < neighbors[i].length; k++) {
+					neighbors[i][k] = edges[i].neighbor(k);
+				}
+				reverse[i] = new TIntArrayList();
+			}
+			for (int i = 0; i < numNodes; i++) {
+				for (int j : neighbors[i]) {
+					if (reverse[j].size() < numNeighbors) {
+						reverse[j].add(i);
+					}
+				}
+			}
+			numCandidates = numUpdates = 0;
+			int batchSize = numNodes / numThreads;
+			RefineThread[] threads = new RefineThread[numThreads];
+			for (int i = 0; i < numThreads; i++) {
+				int start = i * batchSize;
+				int end = (i == numThreads - 1 ? numNodes : start + batchSize);
+				threads[i] = new RefineThread(start, end, neighbors, reverse);
+				threads[i].start();
+			}
+			for (int i = 0; i < numThreads; i++) {
+				try {
+					threads[i].join();
+				} catch (InterruptedException e) { }
+			}
+			System.out.println(String.format("Refinement round %d: %.1f " +
+					"candidates per node, %d neighbour updates.", iter + 1,
+					1.0 * numCandidates / numNodes, numUpdates));
+			if (numUpdates < 0.001 * numNodes * numNeighbors) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Recall@k of the current neighbour lists on a random sample of nodes.
+	 * A found neighbour counts as correct if it is at least as similar as
+	 * the k-th exact neighbour, so ties are not penalized.
+	 */
+	private void evaluateRecall() {
+		Random random = new Random(randomSeed);
+		int sampleSize = Math.min(recallSampleSize, numNodes);
+		int numFound = 0, numExact = 0;
+		double[] sims = new double[numNodes];
+		for (int n = 0; n < sampleSize; n++) {
+			int i = random.nextInt(numNodes);
+			int len = 0;
+			for (int j = 0; j < numNodes; j++) {
+				double sim = (i == j ? 0 : cosineSimilarity(features[i],
+						featureVals[i], features[j], featureVals[j]));
+				if (sim >= similarityThreshold && sim > 0) {
+					sims[len++] = sim;
+				}
+			}
+			if (len == 0) {
+				continue;
+			}
+			Arrays.sort(sims, 0, len);
+			int k = Math.min(numNeighbors, len);
+			double kthSim = sims[len - k];
+			int found = 0;
+			for (int e = 0; e < edges[i].size(); e++) {
+				if (edges[i].weight(e) >= kthSim) {
+					++ found;
+				}
+			}
+			numFound += Math.min(found, k);
+			numExact += k;
+		}
+		System.out.println(String.format("Recall@%d on %d sampled nodes: " +
+				"%.4f", numNeighbors, sampleSize,
+				numExact == 0 ? 1.0 : 1.0 * numFound / numExact));
+	}
 
 	protected class EdgeBuilderThread extends Thread {
 		int start, end, id;
@@ -83,13 +254,46 @@ public class KNNGraphConstructer {
 		@Override
 		public void run() {
 			long startTime = System.currentTimeMillis();
+			int[] lastSeen = null;
+			TIntArrayList candidates = null;
+			double[] acc = null;
+			long count = 0;
+			if (lsh != null || index != null) {
+				lastSeen = new int[numNodes];
+				Arrays.fill(lastSeen, -1);
+				candidates = new TIntArrayList();
+			}
+			if (index != null) {
+				acc = new double[numNodes];
+			}
 			for (int i = start; i < end; i++) {
-				for (int j = 0; j < numNodes; j++) {
-					if (i != j) {
+				if (index != null) {
+					candidates.clear();
+					index.accumulate(i, features[i], featureVals[i],
+							pruneBound, acc, lastSeen, candidates);
+					count += candidates.size();
+					addSorted(i, candidates, acc);
+				} else if (lsh != null) {
+					candidates.clear();
+					lsh.getCandidates(i, lastSeen, candidates);
+					count += candidates.size();
+					for (int c = 0; c < candidates.size(); c++) {
+						int j = candidates.getQuick(c);
 						double sim = cosineSimilarity(features[i],
 								featureVals[i], features[j], featureVals[j]);
 						if (sim >= similarityThreshold) {
-							edges[i].add(new Edge(j, sim));
+							edges[i].add(j, sim);
+						}
+					}
+				} else {
+					for (int j = 0; j < numNodes; j++) {
+						if (i != j) {
+							double sim = cosineSimilarity(features[i],
+									featureVals[i], features[j],
+									featureVals[j]);
+							if (sim >= similarityThreshold) {
+								edges[i].add(j, sim);
+							}
 						}
 					}
 				}
@@ -105,31 +309,128 @@ public class KNNGraphConstructer {
 							+ " nodes per minute\n");
 				}
 			}
+			addCandidates(count, 0);
 		}
-
-		private double cosineSimilarity(int[] k0, double[] v0, int[] k1,
-				double[] v1) {
-			if(k0.length == 0 || k1.length == 0 || k0[0] > k1[k1.length-1] ||
-					k1[0] > k0[k0.length-1]) { 
-				return 0.0;
-			}
-			double sim = 0;
-			for (int i = 0, j = 0; i < k0.length && j < k1.length; ) {
-				if (k0[i] == k1[j]) {
-					sim += v0[i] * v1[j];
-					i ++; j ++;
+		
+		/**
+		 * Adds the candidates to the edge list of i in the order the
+		 * all-pairs scan would, so that ties are broken the same way. Nodes
+		 * that share no feature with i have similarity 0; the scan adds them
+		 * only while they can still enter the list, so they are visited in
+		 * order until that is no longer the case.
+		 */
+		private void addSorted(int i, TIntArrayList candidates, double[] acc) {
+			candidates.sort();
+			int size = candidates.size(), c = 0;
+			for (int j = 0; j < numNodes && 0 >= similarityThreshold; j++) {
+				if (edges[i].size() >= numNeighbors &&
+						edges[i].minWeight() >= 0) {
+					break;
 				}
-				else if (k0[i] < k1[j]) {
-					i ++;
+				if (c < size && candidates.getQuick(c) == j) {
+					addCandidate(i, j, acc);
+					++ c;
+				} else if (j != i) {
+					edges[i].add(j, 0);
+				}
+			}
+			for (; c < size; c++) {
+				addCandidate(i, candidates.getQuick(c), acc);
+			}
+		}
+		
+		private void addCandidate(int i, int j, double[] acc) {
+			// pruned features are missing from acc, so recompute the score
+			double sim = (pruneBound > 0 ? cosineSimilarity(features[i],
+					featureVals[i], features[j], featureVals[j]) : acc[j]);
+			acc[j] = 0;
+			if (sim >= similarityThreshold) {
+				edges[i].add(j, sim);
+			}
+		}
+	}
+	
+	/**
+	 * Only adds to the edge lists of its own nodes, and reads the other
+	 * nodes' lists from the snapshot taken before the round.
+	 */
+	protected class RefineThread extends Thread {
+		int start, end;
+		int[][] neighbors;
+		TIntArrayList[] reverse;
+		
+		RefineThread(int start, int end, int[][] neighbors,
+				TIntArrayList[] reverse) {
+			this.start = start;
+			this.end = end;
+			this.neighbors = neighbors;
+			this.reverse = reverse;
+		}
+		
+		@Override
+		public void run() {
+			int[] lastSeen = new int[numNodes];
+			Arrays.fill(lastSeen, -1);
+			long count = 0, updates = 0;
+			for (int i = start; i < end; i++) {
+				lastSeen[i] = i;
+				for (int j : neighbors[i]) {
+					lastSeen[j] = i;
 				}
-				else {
-					j ++;
+				TIntArrayList near = new TIntArrayList(neighbors[i]);
+				near.add(reverse[i].toNativeArray());
+				for (int u = 0; u < near.size(); u++) {
+					int j = near.getQuick(u);
+					for (int w : neighbors[j]) {
+						if (lastSeen[w] != i) {
+							lastSeen[w] = i;
+							++ count;
+							updates += tryAdd(i, w);
+						}
+					}
+					for (int v = 0; v < reverse[j].size(); v++) {
+						int w = reverse[j].getQuick(v);
+						if (lastSeen[w] != i) {
+							lastSeen[w] = i;
+							++ count;
+							updates += tryAdd(i, w);
+						}
+					}
 				}
 			}
-			return sim;
+			addCandidates(count, updates);
+		}
+		
+		private int tryAdd(int i, int j) {
+			double sim = cosineSimilarity(features[i], featureVals[i],
+					features[j], featureVals[j]);
+			return (sim >= similarityThreshold &&
+					edges[i].add(j, sim)) ? 1 : 0;
 		}
 	}
 	
+	double cosineSimilarity(int[] k0, double[] v0, int[] k1,
+			double[] v1) {
+		if(k0.length == 0 || k1.length == 0 || k0[0] > k1[k1.length-1] ||
+				k1[0] > k0[k0.length-1]) { 
+			return 0.0;
+		}
+		double sim = 0;
+		for (int i = 0, j = 0; i < k0.length && j < k1.length; ) {
+			if (k0[i] == k1[j]) {
+				sim += v0[i] * v1[j];
+				i ++; j ++;
+			}
+			else if (k0[i] < k1[j]) {
+				i ++;
+			}
+			else {
+				j ++;
+			}
+		}
+		return sim;
+	}
+
 	public void symmetrifyAndSaveGraph()
 			throws UnsupportedEncodingException, FileNotFoundException,
 			IOException  {
@@ -141,9 +442,8 @@ public class KNNGraphConstructer {
 		int nrEdges = 0, nrEmptyNodes = 0;
 		if (!mutualKNN) {
 			for (int i = 0; i < numNodes; i++) {
-				for (Iterator<Edge> itr = edges[i].iterator(); itr.hasNext(); ) {
-					Edge e = itr.next();
-					edges[e.neighbor].symAdd(new Edge(i, e.weight));
+				for (int e = 0; e < edges[i].size(); e++) {
+					edges[edges[i].neighbor(e)].symAdd(i, edges[i].weight(e));
 				}
 			}
 		}
@@ -152,22 +452,36 @@ public class KNNGraphConstructer {
 		double avgDegree = 0, maxDegree = -1, minDegree = Double.MAX_VALUE;
 		double avgFreqEmpty = 0, avgFreqNonEmpty = 0; 
 		System.out.println("Saving graph to file: " + graphPath);
-		BufferedWriter fout = new BufferedWriter(new FileWriter(graphPath));
+		// graphs named *.csr are saved in the binary SparseSimilarityGraph
+		// format, with full precision weights
+		boolean binary = graphPath.endsWith(".csr");
+		BufferedWriter fout = (binary ? null :
+			new BufferedWriter(new FileWriter(graphPath)));
+		int[] rowStart = new int[numNodes + 1];
+		TIntArrayList cols = new TIntArrayList();
+		TDoubleArrayList vals = new TDoubleArrayList();
 		
 		for (int i = 0; i < numNodes; i++) {
 			int degree = 0;
-			for (Iterator<Edge> itr = edges[i].iterator(); itr.hasNext(); ) {
-				Edge e = itr.next();
-				if (!edges[e.neighbor].contains(i) || e.weight <= 0) {
+			for (int e = 0; e < edges[i].size(); e++) {
+				int j = edges[i].neighbor(e);
+				double weight = edges[i].weight(e);
+				if (!edges[j].contains(i) || weight <= 0) {
 					continue;
 				}
 				++ degree;
 				++ nrEdges;
-				weightNorm += e.weight;
+				weightNorm += weight;
 	
-				fout.write(String.format("%d\t%d\t%.12f\n", i + 1,
-						e.neighbor + 1, e.weight));
+				if (binary) {
+					cols.add(j);
+					vals.add(weight);
+				} else {
+					fout.write(String.format("%d\t%d\t%.12f\n", i + 1,
+							j + 1, weight));
+				}
 			}
+			rowStart[i + 1] = cols.size();
 			
 			if (degree == 0) {
 				++ nrEmptyNodes;
@@ -176,7 +490,12 @@ public class KNNGraphConstructer {
 			maxDegree = Math.max(maxDegree, degree);
 			minDegree = Math.min(minDegree, degree);
 		}
-		fout.close();
+		if (binary) {
+			SparseSimilarityGraph.save(graphPath, numNodes, rowStart,
+					cols.toNativeArray(), vals.toNativeArray());
+		} else {
+			fout.close();
+		}
 		
 		System.out.println("Saving ngram index to file: " + ngramPath);
 		fout = new BufferedWriter(new FileWriter(ngramPath));
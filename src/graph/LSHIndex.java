@@ -0,0 +1,110 @@
+package graph;
+
+import gnu.trove.TIntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Random-hyperplane LSH over sparse vectors, for approximate cosine k-NN.
+ * Each of numTables tables hashes a node to the numBits signs of its
+ * projections onto random +1/-1 hyperplanes; nodes that share a signature
+ * in at least one table are candidate neighbours. More tables raise recall,
+ * more bits per table shrink the buckets and speed up the search.
+ *
+ * The hyperplanes are never stored: the sign of feature f on plane p is a
+ * bit of a hash of (seed, f, p / 64). Buckets are kept as per-table arrays
+ * of (signature, node) sorted by signature.
+ */
+public class LSHIndex {
+	final int numNodes, numTables, numBits;
+	final long seed;
+	private long[][] tables; // (signature << 32) | node, sorted
+	private int[] signatures; // node * numTables + table
+	private boolean[] isEmpty;
+
+	public LSHIndex(int[][] features, double[][] featureVals, int numTables,
+			int numBits, long seed) {
+		if (numBits < 1 || numBits > 31) {
+			throw new IllegalArgumentException("LSH bits must be in [1, 31].");
+		}
+		this.numNodes = features.length;
+		this.numTables = numTables;
+		this.numBits = numBits;
+		this.seed = seed;
+
+		int numPlanes = numTables * numBits;
+		int numWords = (numPlanes + 63) / 64;
+		double[] projections = new double[numPlanes];
+		signatures = new int[numNodes * numTables];
+		tables = new long[numTables][numNodes];
+		isEmpty = new boolean[numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			Arrays.fill(projections, 0);
+			isEmpty[i] = (features[i].length == 0);
+			for (int j = 0; j < features[i].length; j++) {
+				double v = featureVals[i][j];
+				for (int w = 0; w < numWords; w++) {
+					long bits = hash(features[i][j], w);
+					int end = Math.min(numPlanes, (w + 1) * 64);
+					for (int p = w * 64; p < end; p++, bits >>>= 1) {
+						projections[p] += ((bits & 1) == 0 ? v : -v);
+					}
+				}
+			}
+			for (int t = 0; t < numTables; t++) {
+				int sig = 0;
+				for (int b = 0; b < numBits; b++) {
+					sig = (sig << 1) |
+							(projections[t * numBits + b] > 0 ? 1 : 0);
+				}
+				signatures[i * numTables + t] = sig;
+				tables[t][i] = ((long) sig << 32) | i;
+			}
+		}
+		for (int t = 0; t < numTables; t++) {
+			Arrays.sort(tables[t]);
+		}
+	}
+
+	private long hash(int fid, int word) {
+		// splitmix64 finalizer
+		long z = seed + fid * 0x9E3779B97F4A7C15L + word * 0xC2B2AE3D27D4EB4FL;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Adds to candidates the nodes sharing a bucket with node i in any table,
+	 * each once and excluding i. Nodes without features have cosine 0 with
+	 * every other node and are never candidates. lastSeen is a per-caller
+	 * scratch array of size numNodes, filled with -1 before the first call.
+	 */
+	public void getCandidates(int i, int[] lastSeen, TIntArrayList candidates) {
+		lastSeen[i] = i;
+		if (isEmpty[i]) {
+			return;
+		}
+		for (int t = 0; t < numTables; t++) {
+			long[] table = tables[t];
+			long key = (long) signatures[i * numTables + t] << 32;
+			int k = Arrays.binarySearch(table, key | i);
+			// scan the whole bucket on both sides of i
+			for (int l = k - 1; l >= 0 && (table[l] & ~0xffffffffL) == key;
+					l--) {
+				add((int) table[l], i, lastSeen, candidates);
+			}
+			for (int l = k + 1; l < numNodes &&
+					(table[l] & ~0xffffffffL) == key; l++) {
+				add((int) table[l], i, lastSeen, candidates);
+			}
+		}
+	}
+
+	private void add(int j, int i, int[] lastSeen, TIntArrayList candidates) {
+		if (lastSeen[j] != i && !isEmpty[j]) {
+			lastSeen[j] = i;
+			candidates.add(j);
+		}
+	}
+}
@@ -61,6 +61,16 @@ public class PosGraphBuilder {
 				ngramCounts, features, featureVals, 
 				config.numNeighbors, config.mutualKNN, config.minSimilarity,
 				config.graphPath, config.ngramPath, config.numThreads);
+		if (config.knnMethod.equals("exact")) {
+			ebuilder.useInvertedIndex(config.knnPruneBound);
+		} else if (config.knnMethod.equals("lsh")) {
+			ebuilder.useLSH(config.lshTables, config.lshBits,
+					config.lshRefineIters, config.randomSeed);
+		} else if (!config.knnMethod.equals("brute")) {
+			throw new IllegalArgumentException("Unknown -knn-method " +
+					config.knnMethod);
+		}
+		ebuilder.setRecallSample(config.knnRecallSample, config.randomSeed);
 		try {
 			ebuilder.run();
 		} catch (Exception e) {
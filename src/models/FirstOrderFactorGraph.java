@@ -5,42 +5,127 @@ import util.LogSummer;
 import data.AbstractCorpus;
 import data.AbstractSequence;
 import features.FirstOrderPotentialFunction;
+import features.ScoreCache;
+import parallel.SparseAccumulator;
 
+/**
+ * First-order lattice stored in flat, row-major arrays. Node cells are
+ * addressed as (i * numStates + s) and edge cells as
+ * ((i * numStates + s) * numStates + sp). The arrays are sized to the longest
+ * sentence seen so far by this instance and reused for shorter ones.
+ */
 public class FirstOrderFactorGraph {
-	int sequenceID, length, maxLength;//, numStates, numTStates;
-	public double[][][] edgeScore;
-	public double[][] nodeScore;
-	public double[][][] edgeMarginal;
-	public double[][] nodeMarginal;
-	public double[][] alpha, beta, best;
-	public int[][] prev;
+	int sequenceID, length, capacity, numStates;
+	protected double[] edgeScore;
+	protected double[] nodeScore;
+	protected double[] edgeMarginal;
+	protected double[] nodeMarginal;
+	protected double[] alpha, beta;
+	protected double[] potential, scale;
+	protected double[] best;
+	protected int[] prev;
 	public int[] decode;
 	public double logNorm;
+	// marginal cutoff of addToExpectation(), and the mass it left out over
+	// numExpectedPositions positions
+	public double expectationCutoff, skippedMass;
+	public long numExpectedPositions;
+	// run forward-backward in probability space, see computeMarginals()
+	public boolean scaledMarginals;
+	public long numLogSpaceFallbacks;
+	private boolean probabilitySpace; // marginals are probabilities, not logs
 	private int S0, SN;
 	
 	AbstractFactorIterator fiter;
 	FirstOrderPotentialFunction potentialFunction;
-	private double[] dpTemplate;
+	private double[] dpTemplate, stateTemplate, edgeTemplate;
 
 	public FirstOrderFactorGraph(AbstractCorpus corpus,
 			FirstOrderPotentialFunction potentialFunction, 
 			AbstractFactorIterator fiter) {
-		maxLength = corpus.maxSequenceLength + 1;
-		int ns = corpus.numStates;
-		edgeScore = new double[maxLength][ns][ns];
-		nodeScore = new double[maxLength][ns];
-		edgeMarginal = new double[maxLength][ns][ns];
-		nodeMarginal = new double[maxLength][ns];
-		alpha = new double[maxLength][ns];
-		beta = new double[maxLength][ns];		
-		best = new double[maxLength][ns];
-		prev = new int[maxLength][ns];
-		decode = new int[maxLength];
+		numStates = corpus.numStates;
+		capacity = 0;
 		S0 = corpus.initialState;
 		SN = corpus.finalState;
 		this.potentialFunction = potentialFunction;
 		this.fiter = fiter;
-		dpTemplate = new double[maxLength * corpus.numStates * corpus.numStates];
+		dpTemplate = new double[numStates];
+		stateTemplate = new double[numStates];
+		edgeTemplate = new double[numStates * numStates];
+	}
+
+	private void ensureCapacity(int numPositions) {
+		if (numPositions <= capacity) {
+			return;
+		}
+		capacity = Math.max(numPositions, capacity + capacity / 2);
+		int nodeSize = capacity * numStates;
+		int edgeSize = nodeSize * numStates;
+		edgeScore = new double[edgeSize];
+		nodeScore = new double[nodeSize];
+		edgeMarginal = new double[edgeSize];
+		nodeMarginal = new double[nodeSize];
+		alpha = new double[nodeSize];
+		beta = new double[nodeSize];
+		potential = new double[edgeSize];
+		scale = new double[capacity];
+		best = new double[nodeSize];
+		prev = new int[nodeSize];
+		decode = new int[capacity];
+	}
+
+	private int node(int i, int s) {
+		return i * numStates + s;
+	}
+
+	private int edge(int i, int s, int sp) {
+		return (i * numStates + s) * numStates + sp;
+	}
+
+	public int getNumStates() {
+		return numStates;
+	}
+
+	public double getNodeScore(int i, int s) {
+		return nodeScore[node(i, s)];
+	}
+
+	public double getEdgeScore(int i, int s, int sp) {
+		return edgeScore[edge(i, s, sp)];
+	}
+
+	public double getNodeMarginal(int i, int s) {
+		double q = nodeMarginal[node(i, s)];
+		return probabilitySpace ? Math.log(q) : q;
+	}
+
+	public double getEdgeMarginal(int i, int s, int sp) {
+		double q = edgeMarginal[edge(i, s, sp)];
+		return probabilitySpace ? Math.log(q) : q;
+	}
+
+	public double getNodeProbability(int i, int s) {
+		return nodeProbability(node(i, s));
+	}
+
+	public double getEdgeProbability(int i, int s, int sp) {
+		return edgeProbability(edge(i, s, sp));
+	}
+
+	private double nodeProbability(int n) {
+		return probabilitySpace ? nodeMarginal[n] : Math.exp(nodeMarginal[n]);
+	}
+
+	private double edgeProbability(int e) {
+		return probabilitySpace ? edgeMarginal[e] : Math.exp(edgeMarginal[e]);
+	}
+
+	public void setNodeScore(int i, int s, double score) {
+		nodeScore[node(i, s)] = score;
+	}
+
+	public void setEdgeScore(int i, int s, int sp, double score) {
+		edgeScore[edge(i, s, sp)] = score;
 	}
 	
 	public void fillScores(AbstractSequence sequence, double score) {
@@ -49,9 +134,9 @@ public class FirstOrderFactorGraph {
 			Math.log(score));
 		for (int i = 0; i <= length; i++) {
 			for (int s : fiter.states(sequenceID, i)) {
-				nodeScore[i][s] = logScore;
+				nodeScore[node(i, s)] = logScore;
 				for (int sp : fiter.states(sequenceID, i-1)) {
-					edgeScore[i][s][sp] = logScore;
+					edgeScore[edge(i, s, sp)] = logScore;
 				}
 			}
 		}
@@ -60,29 +145,57 @@ public class FirstOrderFactorGraph {
 	public void set(AbstractSequence sequence) {
 		this.length = sequence.length;
 		this.sequenceID = sequence.seqID;
+		ensureCapacity(length + 1);
 	}
 	
 	public void setScores(AbstractSequence sequence, double[][] nodeS,
 			double[][][] edgeS) {
 		set(sequence);
-		this.nodeScore = nodeS;
-		this.edgeScore = edgeS;
+		for (int i = 0; i <= length; i++) {
+			for (int s : fiter.states(sequenceID, i)) {
+				nodeScore[node(i, s)] = nodeS[i][s];
+				for (int sp : fiter.states(sequenceID, i-1)) {
+					edgeScore[edge(i, s, sp)] = edgeS[i][s][sp];
+				}
+			}
+		}
 	}
 	
 	public void computeScores(AbstractSequence sequence, double[] parameters,
 			double backoff) {
 		set(sequence);
+		potentialFunction.computeEdgeScores(parameters, edgeTemplate);
 		for (int i = 0; i <= length; i++) {
+			potentialFunction.computeNodeScores(sequenceID, i, parameters,
+					stateTemplate);
+			int[] prevStates = fiter.states(sequenceID, i-1);
 			for (int s : fiter.states(sequenceID, i)) {
-				nodeScore[i][s] = //LogSummer.sum(smoothing,
-									backoff + 
-									potentialFunction.computeNodeScore(
-											sequenceID, i, s, parameters);				
-				for (int sp : fiter.states(sequenceID, i-1)) {
-						edgeScore[i][s][sp] = //LogSummer.sum(smoothing,
-									backoff + 
-									potentialFunction.computeEdgeScore(
-											sequenceID, i, s, sp, parameters);
+				nodeScore[node(i, s)] = backoff + stateTemplate[s];
+				int eoff = edge(i, s, 0);
+				int row = s * numStates;
+				for (int sp : prevStates) {
+					edgeScore[eoff + sp] = backoff + edgeTemplate[row + sp];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as above, but reads potentials from tables precomputed by the
+	 * potential function for the current parameter vector.
+	 */
+	public void computeScores(AbstractSequence sequence, ScoreCache cache,
+			double backoff) {
+		set(sequence);
+		int[] toks = sequence.tokens;
+		for (int i = 0; i <= length; i++) {
+			cache.nodeScores(toks, i, stateTemplate);
+			int[] prevStates = fiter.states(sequenceID, i-1);
+			for (int s : fiter.states(sequenceID, i)) {
+				nodeScore[node(i, s)] = backoff + stateTemplate[s];
+				int eoff = edge(i, s, 0);
+				for (int sp : prevStates) {
+					edgeScore[eoff + sp] = backoff + cache.edgeScore(s, sp);
 				}
 			}
 		}
@@ -92,62 +205,169 @@ public class FirstOrderFactorGraph {
 		double smo = Math.log(backoff);
 		for (int i = 0; i <= length; i++) {
 			for (int s : fiter.states(sequenceID, i)) {
-				nodeScore[i][s] = LogSummer.sum(smo, nodeScore[i][s]);
+				nodeScore[node(i, s)] = LogSummer.sum(smo,
+						nodeScore[node(i, s)]);
 				for (int sp : fiter.states(sequenceID, i-1)) {
-					edgeScore[i][s][sp] = LogSummer.sum(smo,
-							edgeScore[i][s][sp]);
+					edgeScore[edge(i, s, sp)] = LogSummer.sum(smo,
+							edgeScore[edge(i, s, sp)]);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Runs forward-backward. With scaledMarginals it runs in probability
+	 * space, and falls back to log space for sentences where that underflows.
+	 */
 	public void computeMarginals() {
+		if (scaledMarginals) {
+			if (computeScaledMarginals()) {
+				return;
+			}
+			++ numLogSpaceFallbacks;
+		}
+		computeLogMarginals();
+	}
+
+	private void computeLogMarginals() {
+		probabilitySpace = false;
 		// do forward backward		
 		for (int s : fiter.states(sequenceID, 0)) { 
-			alpha[0][s] = edgeScore[0][s][S0] + nodeScore[0][s]; 
+			alpha[node(0, s)] = edgeScore[edge(0, s, S0)] +
+					nodeScore[node(0, s)];
 		}
 		int len;
 		for (int i = 1; i <= length; i++) {
+			int[] prevStates = fiter.states(sequenceID, i-1);
 			for (int s : fiter.states(sequenceID, i)) {
 				len = 0;
-				for (int sp : fiter.states(sequenceID, i-1)) {  
-					dpTemplate[len++] = alpha[i-1][sp] + edgeScore[i][s][sp] +
-							nodeScore[i][s];
+				int eoff = edge(i, s, 0);
+				double ns = nodeScore[node(i, s)];
+				for (int sp : prevStates) {
+					dpTemplate[len++] = alpha[node(i-1, sp)] +
+							edgeScore[eoff + sp] + ns;
 				}
-				alpha[i][s] = LatticeHelper.logsum(dpTemplate, len);
+				alpha[node(i, s)] = LatticeHelper.logsum(dpTemplate, len);
 			}
 		}
-		logNorm = alpha[length][SN];	
-		beta[length][SN] = 0;
+		logNorm = alpha[node(length, SN)];
+		beta[node(length, SN)] = 0;
 		for (int i = length; i > 0; i--) { 
+			int[] currStates = fiter.states(sequenceID, i);
 			for (int sp : fiter.states(sequenceID, i - 1)) {
 				len = 0;
-				for (int s : fiter.states(sequenceID, i)) { 
-					dpTemplate[len++] = beta[i][s] + edgeScore[i][s][sp] +
-							nodeScore[i][s];
+				for (int s : currStates) {
+					dpTemplate[len++] = beta[node(i, s)] +
+							edgeScore[edge(i, s, sp)] + nodeScore[node(i, s)];
 				}
-				beta[i-1][sp] = LatticeHelper.logsum(dpTemplate, len);
+				beta[node(i-1, sp)] = LatticeHelper.logsum(dpTemplate, len);
 			}
 		}
 		for (int i = 0; i <= length; i++) { 
 			for (int s : fiter.states(sequenceID, i)) {
-				nodeMarginal[i][s] = alpha[i][s] + beta[i][s] - logNorm;
+				int n = node(i, s);
+				nodeMarginal[n] = alpha[n] + beta[n] - logNorm;
 				for (int sp : fiter.states(sequenceID, i - 1)) {
-					edgeMarginal[i][s][sp] = (i == 0 ? nodeMarginal[0][s] : 
-								alpha[i-1][sp] + beta[i][s] +
-								edgeScore[i][s][sp] + nodeScore[i][s] - logNorm);
+					int e = edge(i, s, sp);
+					edgeMarginal[e] = (i == 0 ? nodeMarginal[n] :
+								alpha[node(i-1, sp)] + beta[n] +
+								edgeScore[e] + nodeScore[n] - logNorm);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Forward-backward on exponentiated potentials, normalizing alpha at each
+	 * position and dividing beta by the same normalizers. The potentials of a
+	 * position are shifted by their maximum, so they are at most 1 and each
+	 * normalizer is at least the largest potential times an alpha. Returns
+	 * false if a normalizer underflows or beta overflows; the marginals are
+	 * then left undefined.
+	 */
+	private boolean computeScaledMarginals() {
+		double logZ = 0;
+		for (int i = 0; i <= length; i++) {
+			int[] prevStates = fiter.states(sequenceID, i-1);
+			int[] currStates = fiter.states(sequenceID, i);
+			double max = Double.NEGATIVE_INFINITY;
+			for (int s : currStates) {
+				int eoff = edge(i, s, 0);
+				double ns = nodeScore[node(i, s)];
+				for (int sp : prevStates) {
+					max = Math.max(max, edgeScore[eoff + sp] + ns);
+				}
+			}
+			double norm = 0;
+			for (int s : currStates) {
+				int eoff = edge(i, s, 0);
+				double ns = nodeScore[node(i, s)] - max;
+				double a = 0;
+				for (int sp : prevStates) {
+					double p = Math.exp(edgeScore[eoff + sp] + ns);
+					potential[eoff + sp] = p;
+					a += (i == 0 ? 1.0 : alpha[node(i-1, sp)]) * p;
+				}
+				alpha[node(i, s)] = a;
+				norm += a;
+			}
+			if (!(norm >= Double.MIN_NORMAL)) {
+				return false;
+			}
+			for (int s : currStates) {
+				alpha[node(i, s)] /= norm;
+			}
+			scale[i] = norm;
+			logZ += max + Math.log(norm);
+		}
+		// the final position only allows SN
+		beta[node(length, SN)] = 1;
+		for (int i = length; i > 0; i--) {
+			int[] prevStates = fiter.states(sequenceID, i-1);
+			for (int sp : prevStates) {
+				beta[node(i-1, sp)] = 0;
+			}
+			for (int s : fiter.states(sequenceID, i)) {
+				double b = beta[node(i, s)] / scale[i];
+				int eoff = edge(i, s, 0);
+				for (int sp : prevStates) {
+					beta[node(i-1, sp)] += potential[eoff + sp] * b;
+				}
+			}
+			double sum = 0;
+			for (int sp : prevStates) {
+				sum += beta[node(i-1, sp)];
+			}
+			if (!(sum <= Double.MAX_VALUE)) {
+				return false;
+			}
+		}
+		for (int i = 0; i <= length; i++) {
+			int[] prevStates = fiter.states(sequenceID, i-1);
+			for (int s : fiter.states(sequenceID, i)) {
+				int n = node(i, s);
+				nodeMarginal[n] = alpha[n] * beta[n];
+				double b = beta[n] / scale[i];
+				int eoff = edge(i, s, 0);
+				for (int sp : prevStates) {
+					edgeMarginal[eoff + sp] = (i == 0 ? nodeMarginal[n] :
+							alpha[node(i-1, sp)] * potential[eoff + sp] * b);
+				}
+			}
+		}
+		logNorm = logZ;
+		probabilitySpace = true;
+		return true;
+	}
+
 	public double computeEntropy() {
 		double ent = logNorm;
 		for (int i = 0; i <= length; i++) { 
 			for (int s : fiter.states(sequenceID, i)) {  
 				for (int sp : fiter.states(sequenceID, i-1)) {
-					double marg = Math.exp(edgeMarginal[i][s][sp]);
-					ent -=  marg * (edgeScore[i][s][sp] + nodeScore[i][s]);
+					int e = edge(i, s, sp);
+					double marg = edgeProbability(e);
+					ent -=  marg * (edgeScore[e] + nodeScore[node(i, s)]);
 				}
 			}
 		}
@@ -163,26 +383,46 @@ public class FirstOrderFactorGraph {
 		}
 	}
 	
-	public void addToExpectation(int sequenceID, double[] empirical,
+	/**
+	 * Adds the expected feature counts of the sentence, times multiplier.
+	 * Emission features are added once per state with its node marginal, and
+	 * transition features once per transition. States and transitions whose
+	 * marginal is at most expectationCutoff are left out, and their
+	 * probability mass is added to skippedMass.
+	 */
+	public void addToExpectation(int sequenceID, SparseAccumulator empirical,
 			double multiplier) {
 		for (int i = 0; i <= length; i++) {
+			int[] prevStates = fiter.states(sequenceID, i-1);
 			for (int s : fiter.states(sequenceID, i)) {
-				for (int sp : fiter.states(sequenceID, i-1)) {
-					double marginal = Math.exp(edgeMarginal[i][s][sp]) *
-							multiplier; 
-					potentialFunction.addToEmpirical(sequenceID, i, s, sp,
-							empirical, marginal);
+				double q = nodeProbability(node(i, s));
+				if (q <= expectationCutoff) {
+					skippedMass += q;
+					continue;
+				}
+				potentialFunction.addEmissionsToEmpirical(sequenceID, i, s,
+						empirical, q * multiplier);
+				int eoff = edge(i, s, 0);
+				for (int sp : prevStates) {
+					double marginal = edgeProbability(eoff + sp);
+					if (marginal <= expectationCutoff) {
+						skippedMass += marginal;
+						continue;
+					}
+					potentialFunction.addTransitionsToEmpirical(s, sp,
+							empirical, marginal * multiplier);
 				}
 			}
 		}
+		numExpectedPositions += length + 1;
 	}
 	
-	private void decodePosterior() {
+	public void decodePosterior() {
 		for (int i = 0; i < length; i++) {
 			decode[i] = 0;
 			double maxq = Double.NEGATIVE_INFINITY;
 			for (int j : fiter.states(sequenceID, i)) {
-				double q = Math.exp(nodeMarginal[i][j]);
+				double q = nodeProbability(node(i, j));
 				if (q > maxq) {
 					decode[i] = j;
 					maxq = q;
@@ -191,8 +431,41 @@ public class FirstOrderFactorGraph {
 		}
 	}
 	
-	public double decodeAndEvaluate(int[] gold) {
-		decodePosterior();
+	/**
+	 * Fills decode with the highest scoring state sequence. Only needs the
+	 * scores, so computeMarginals() does not have to be called first.
+	 */
+	public void decodeViterbi() {
+		for (int s : fiter.states(sequenceID, 0)) {
+			best[node(0, s)] = edgeScore[edge(0, s, S0)] +
+					nodeScore[node(0, s)];
+		}
+		for (int i = 1; i <= length; i++) {
+			int[] prevStates = fiter.states(sequenceID, i-1);
+			for (int s : fiter.states(sequenceID, i)) {
+				int eoff = edge(i, s, 0);
+				double maxScore = Double.NEGATIVE_INFINITY;
+				int argmax = prevStates[0];
+				for (int sp : prevStates) {
+					double score = best[node(i-1, sp)] + edgeScore[eoff + sp];
+					if (score > maxScore) {
+						maxScore = score;
+						argmax = sp;
+					}
+				}
+				best[node(i, s)] = maxScore + nodeScore[node(i, s)];
+				prev[node(i, s)] = argmax;
+			}
+		}
+		// the final position only allows SN
+		int s = SN;
+		for (int i = length; i > 0; i--) {
+			s = prev[node(i, s)];
+			decode[i-1] = s;
+		}
+	}
+
+	public double evaluate(int[] gold) {
 		double accuracy = 0;
 		for (int i = 0; i < length; i++) { 
 			if (gold[i] == decode[i]) {
@@ -201,4 +474,9 @@ public class FirstOrderFactorGraph {
 		}
 		return accuracy;
 	}
+
+	public double decodeAndEvaluate(int[] gold) {
+		decodePosterior();
+		return evaluate(gold);
+	}
 }
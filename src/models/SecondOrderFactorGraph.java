@@ -3,126 +3,440 @@ package models;
 import constraints.LatticeHelper;
 import data.AbstractCorpus;
 import data.AbstractSequence;
+import features.ScoreCache;
 import features.SecondOrderPotentialFunction;
+import parallel.SparseAccumulator;
 
+/**
+ * Second-order lattice that only stores the (s, sp, spp) triples allowed by
+ * the factor iterator. For each position i, the allowed states at i, i-1 and
+ * i-2 are enumerated once in set(), and the cells of that position live in a
+ * contiguous block starting at a per-position offset:
+ *   node cells:  nodeOffset[i] + a
+ *   alpha/beta:  pairOffset[i] + a * n1 + b
+ *   edge cells:  edgeOffset[i] + (a * n1 + b) * n2 + c
+ * where a, b, c are the local indices of s, sp, spp and n1, n2 are the number
+ * of allowed states at i-1 and i-2. Memory therefore grows with the number of
+ * allowed transitions rather than with numStates^3.
+ */
 public class SecondOrderFactorGraph {
-	protected int sequenceID, length, maxLength, numStates, numTStates;
-	public double[][][][] edgeScore;
-	public double[][] nodeScore;
-	public double[][][][] edgeMarginal;
-	public double[][] nodeMarginal;
-	public double[][][] alpha, beta, best;
-	public int[][][] prev;
+	protected int sequenceID, length, numStates, numTStates;
+	protected int[][] states; // states[i+2] = allowed states at position i
+	protected int[] localIndex; // (i+2) * numStates + s -> a, or -1 if pruned
+	protected int[] nodeOffset, pairOffset, edgeOffset;
+	protected double[] edgeScore;
+	protected double[] nodeScore;
+	protected double[] edgeMarginal;
+	protected double[] nodeMarginal;
+	protected double[] alpha, beta;
+	protected double[] potential, scale;
+	protected double[] best;
+	protected int[] prev;
 	public int[] decode;
 	public double logNorm;
+	// marginal cutoff of addToExpectation(), and the mass it left out over
+	// numExpectedPositions positions
+	public double expectationCutoff, skippedMass;
+	public long numExpectedPositions;
+	// run forward-backward in probability space, see computeMarginals()
+	public boolean scaledMarginals;
+	public long numLogSpaceFallbacks;
+	private boolean probabilitySpace; // marginals are probabilities, not logs
 	protected int S0, S00, SN;
 	protected AbstractFactorIterator fiter;
 	protected SecondOrderPotentialFunction potentialFunction;
-	private double[] dpTemplate;
+	private double[] dpTemplate, stateTemplate, edgeTemplate;
+	private int positionCapacity;
 	
 	public SecondOrderFactorGraph(AbstractCorpus corpus,
 			SecondOrderPotentialFunction potentialFunction,
 			AbstractFactorIterator fiter) {
-		this.maxLength = corpus.maxSequenceLength + 1;
 		this.numStates = corpus.numStates;
 		this.numTStates = corpus.numTags;
-		edgeScore = new double[maxLength][numStates][numStates][numStates];
-		nodeScore = new double[maxLength][numStates];
-		edgeMarginal = new double[maxLength][numStates][numStates][numStates];
-		nodeMarginal = new double[maxLength][numStates];
-		alpha = new double[maxLength][numStates][numStates];
-		beta = new double[maxLength][numStates][numStates];
-		
 		S0 = corpus.initialState;
 		S00 = corpus.initialStateSO;
 		SN = corpus.finalState;
 		
 		this.potentialFunction = potentialFunction;
 		this.fiter = fiter;
-		dpTemplate = new double[maxLength * numStates * numStates];
+		dpTemplate = new double[numStates];
+		stateTemplate = new double[numStates];
+		edgeTemplate = new double[numStates * numStates * numStates];
+		positionCapacity = 0;
+		nodeScore = nodeMarginal = alpha = beta = edgeScore = edgeMarginal =
+				best = potential = scale = new double[0];
+		prev = new int[0];
+	}
+
+	private double[] grow(double[] arr, int size) {
+		return size <= arr.length ? arr :
+			new double[Math.max(size, arr.length + arr.length / 2)];
+	}
+
+	private int[] grow(int[] arr, int size) {
+		return size <= arr.length ? arr :
+			new int[Math.max(size, arr.length + arr.length / 2)];
 	}
 	
 	public void set(AbstractSequence sequence) {
 		this.length = sequence.length;
 		this.sequenceID = sequence.seqID;
+		if (length + 3 > positionCapacity) {
+			positionCapacity = Math.max(length + 3,
+					positionCapacity + positionCapacity / 2);
+			states = new int[positionCapacity][];
+			localIndex = new int[positionCapacity * numStates];
+			nodeOffset = new int[positionCapacity];
+			pairOffset = new int[positionCapacity];
+			edgeOffset = new int[positionCapacity];
+			decode = new int[positionCapacity];
+		}
+		for (int i = -2; i <= length; i++) {
+			states[i+2] = fiter.states(sequenceID, i);
+			int base = (i + 2) * numStates;
+			for (int s = 0; s < numStates; s++) {
+				localIndex[base + s] = -1;
+			}
+			for (int a = 0; a < states[i+2].length; a++) {
+				localIndex[base + states[i+2][a]] = a;
+			}
+		}
+		int numNodes = 0, numPairs = 0, numEdges = 0;
+		for (int i = 0; i <= length; i++) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			nodeOffset[i] = numNodes;
+			pairOffset[i] = numPairs;
+			edgeOffset[i] = numEdges;
+			numNodes += n0;
+			numPairs += n0 * n1;
+			numEdges += n0 * n1 * n2;
+		}
+		nodeScore = grow(nodeScore, numNodes);
+		nodeMarginal = grow(nodeMarginal, numNodes);
+		alpha = grow(alpha, numPairs);
+		beta = grow(beta, numPairs);
+		best = grow(best, numPairs);
+		prev = grow(prev, numPairs);
+		edgeScore = grow(edgeScore, numEdges);
+		edgeMarginal = grow(edgeMarginal, numEdges);
+		potential = grow(potential, numEdges);
+		scale = grow(scale, length + 1);
+	}
+
+	private int local(int i, int s) {
+		return localIndex[(i + 2) * numStates + s];
+	}
+
+	private int node(int i, int s) {
+		int a = local(i, s);
+		return a < 0 ? -1 : nodeOffset[i] + a;
+	}
+
+	private int edge(int i, int s, int sp, int spp) {
+		int a = local(i, s), b = local(i-1, sp), c = local(i-2, spp);
+		if (a < 0 || b < 0 || c < 0) {
+			return -1;
+		}
+		return edgeOffset[i] + (a * states[i+1].length + b) *
+				states[i].length + c;
+	}
+
+	public int getNumStates() {
+		return numStates;
+	}
+
+	public double getNodeScore(int i, int s) {
+		int n = node(i, s);
+		return n < 0 ? Double.NEGATIVE_INFINITY : nodeScore[n];
+	}
+
+	public double getEdgeScore(int i, int s, int sp, int spp) {
+		int e = edge(i, s, sp, spp);
+		return e < 0 ? Double.NEGATIVE_INFINITY : edgeScore[e];
+	}
+
+	public double getNodeMarginal(int i, int s) {
+		int n = node(i, s);
+		return n < 0 ? Double.NEGATIVE_INFINITY : probabilitySpace ?
+				Math.log(nodeMarginal[n]) : nodeMarginal[n];
+	}
+
+	public double getEdgeMarginal(int i, int s, int sp, int spp) {
+		int e = edge(i, s, sp, spp);
+		return e < 0 ? Double.NEGATIVE_INFINITY : probabilitySpace ?
+				Math.log(edgeMarginal[e]) : edgeMarginal[e];
+	}
+
+	public double getNodeProbability(int i, int s) {
+		int n = node(i, s);
+		return n < 0 ? 0 : nodeProbability(n);
+	}
+
+	public double getEdgeProbability(int i, int s, int sp, int spp) {
+		int e = edge(i, s, sp, spp);
+		return e < 0 ? 0 : edgeProbability(e);
+	}
+
+	private double nodeProbability(int n) {
+		return probabilitySpace ? nodeMarginal[n] : Math.exp(nodeMarginal[n]);
+	}
+
+	private double edgeProbability(int e) {
+		return probabilitySpace ? edgeMarginal[e] : Math.exp(edgeMarginal[e]);
+	}
+
+	/** Pruned cells are implicitly -inf and are left untouched. */
+	public void setNodeScore(int i, int s, double score) {
+		int n = node(i, s);
+		if (n >= 0) {
+			nodeScore[n] = score;
+		}
+	}
+
+	public void setEdgeScore(int i, int s, int sp, int spp, double score) {
+		int e = edge(i, s, sp, spp);
+		if (e >= 0) {
+			edgeScore[e] = score;
+		}
 	}
 	
 	public void computeScores(AbstractSequence sequence, double[] parameters,
 			double backoff) {
 		set(sequence);
+		potentialFunction.computeEdgeScores(parameters, edgeTemplate);
 		for (int i = 0; i <= length; i++) {
-			for (int s : fiter.states(sequenceID, i)) {
-				nodeScore[i][s] = backoff + potentialFunction.computeNodeScore(
-						sequenceID, i, s, parameters);
-						
-				for (int sp : fiter.states(sequenceID, i-1)) {
-					for (int spp : fiter.states(sequenceID, i-2)) {
-						edgeScore[i][s][sp][spp] = backoff +
-								potentialFunction.computeEdgeScore(
-										sequenceID, i, s, sp, spp, parameters);
+			potentialFunction.computeNodeScores(sequenceID, i, parameters,
+					stateTemplate);
+			int[] s0 = states[i+2], s1 = states[i+1], s2 = states[i];
+			int e = edgeOffset[i];
+			for (int a = 0; a < s0.length; a++) {
+				int s = s0[a];
+				nodeScore[nodeOffset[i] + a] = backoff + stateTemplate[s];
+				for (int sp : s1) {
+					int row = (s * numStates + sp) * numStates;
+					for (int spp : s2) {
+						edgeScore[e++] = backoff + edgeTemplate[row + spp];
 					}
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Same as above, but reads potentials from tables precomputed by the
+	 * potential function for the current parameter vector.
+	 */
+	public void computeScores(AbstractSequence sequence, ScoreCache cache,
+			double backoff) {
+		set(sequence);
+		int[] toks = sequence.tokens;
+		for (int i = 0; i <= length; i++) {
+			int[] s0 = states[i+2], s1 = states[i+1], s2 = states[i];
+			int e = edgeOffset[i];
+			cache.nodeScores(toks, i, stateTemplate);
+			for (int a = 0; a < s0.length; a++) {
+				int s = s0[a];
+				nodeScore[nodeOffset[i] + a] = backoff + stateTemplate[s];
+				for (int sp : s1) {
+					for (int spp : s2) {
+						edgeScore[e++] = backoff + cache.edgeScore(s, sp, spp);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs forward-backward. With scaledMarginals it runs in probability
+	 * space, and falls back to log space for sentences where that underflows.
+	 */
 	public void computeMarginals() {
-		for (int s : fiter.states(sequenceID, 0)) { 
-			alpha[0][s][S0] = edgeScore[0][s][S0][S00] + nodeScore[0][s];
+		if (scaledMarginals) {
+			if (computeScaledMarginals()) {
+				return;
+			}
+			++ numLogSpaceFallbacks;
+		}
+		computeLogMarginals();
+	}
+
+	private void computeLogMarginals() {
+		probabilitySpace = false;
+		for (int a = 0; a < states[2].length; a++) {
+			alpha[pairOffset[0] + a] = edgeScore[edgeOffset[0] + a] +
+					nodeScore[nodeOffset[0] + a];
 		}
 		int len;
 		for (int i = 1; i <= length; i++) {
-			for (int s : fiter.states(sequenceID, i)) {
-				for (int sp : fiter.states(sequenceID, i-1)) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			int e = edgeOffset[i];
+			for (int a = 0; a < n0; a++) {
+				double ns = nodeScore[nodeOffset[i] + a];
+				for (int b = 0; b < n1; b++) {
+					int prevPair = pairOffset[i-1] + b * n2;
 					len = 0;
-					for (int spp : fiter.states(sequenceID, i-2)) {
-						dpTemplate[len++] = alpha[i-1][sp][spp] +
-								edgeScore[i][s][sp][spp] + nodeScore[i][s];
+					for (int c = 0; c < n2; c++) {
+						dpTemplate[len++] = alpha[prevPair + c] +
+								edgeScore[e++] + ns;
 					}
-					alpha[i][s][sp] = LatticeHelper.logsum(dpTemplate, len);
+					alpha[pairOffset[i] + a * n1 + b] =
+							LatticeHelper.logsum(dpTemplate, len);
 				}
 			}
 		}
+		// the final position only allows SN
 		len = 0;
-		for (int sp : fiter.states(sequenceID, length-1)) {
-			beta[length][SN][sp] = 0;
-			dpTemplate[len++] = alpha[length][SN][sp];
+		for (int b = 0; b < states[length+1].length; b++) {
+			beta[pairOffset[length] + b] = 0;
+			dpTemplate[len++] = alpha[pairOffset[length] + b];
 		}
 		logNorm = LatticeHelper.logsum(dpTemplate, len);
 
 		for (int i = length; i > 0; i--) { 
-			for (int sp : fiter.states(sequenceID, i - 1)) { 
-				for (int spp : fiter.states(sequenceID, i - 2)) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			for (int b = 0; b < n1; b++) {
+				for (int c = 0; c < n2; c++) {
 					len = 0;
-					for (int s : fiter.states(sequenceID, i)) {
-						dpTemplate[len++] = beta[i][s][sp] +
-								edgeScore[i][s][sp][spp] + nodeScore[i][s];
+					for (int a = 0; a < n0; a++) {
+						dpTemplate[len++] = beta[pairOffset[i] + a * n1 + b] +
+								edgeScore[edgeOffset[i] + (a * n1 + b) * n2 + c]
+								+ nodeScore[nodeOffset[i] + a];
 					}
-					beta[i-1][sp][spp] = LatticeHelper.logsum(dpTemplate, len);
+					beta[pairOffset[i-1] + b * n2 + c] =
+							LatticeHelper.logsum(dpTemplate, len);
 				}
 			}
 		}
-		for (int s : fiter.states(sequenceID, 0)) {
-			nodeMarginal[0][s] = edgeMarginal[0][s][S0][S00] =
-					alpha[0][s][S0] + beta[0][s][S0] - logNorm;
+		for (int a = 0; a < states[2].length; a++) {
+			nodeMarginal[nodeOffset[0] + a] = edgeMarginal[edgeOffset[0] + a] =
+					alpha[pairOffset[0] + a] + beta[pairOffset[0] + a] -
+					logNorm;
 		}
 		for (int i = 1; i <= length; i++) {
-			for (int s : fiter.states(sequenceID, i)) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			int e = edgeOffset[i];
+			for (int a = 0; a < n0; a++) {
+				double ns = nodeScore[nodeOffset[i] + a];
 				len = 0;
-				for (int sp : fiter.states(sequenceID, i - 1)) { 
-					for (int spp : fiter.states(sequenceID, i - 2)) {
-						edgeMarginal[i][s][sp][spp] = alpha[i-1][sp][spp] +
-								beta[i][s][sp] + edgeScore[i][s][sp][spp] +
-								nodeScore[i][s] - logNorm;
+				for (int b = 0; b < n1; b++) {
+					int pair = pairOffset[i] + a * n1 + b;
+					int prevPair = pairOffset[i-1] + b * n2;
+					for (int c = 0; c < n2; c++, e++) {
+						edgeMarginal[e] = alpha[prevPair + c] + beta[pair] +
+								edgeScore[e] + ns - logNorm;
 					}
-					dpTemplate[len++] = alpha[i][s][sp] + beta[i][s][sp] -
-							logNorm;
+					dpTemplate[len++] = alpha[pair] + beta[pair] - logNorm;
 				}
-				nodeMarginal[i][s] = LatticeHelper.logsum(dpTemplate, len);
+				nodeMarginal[nodeOffset[i] + a] =
+						LatticeHelper.logsum(dpTemplate, len);
 			}
 		}
 	}
 	
+	/**
+	 * Forward-backward on exponentiated potentials over the same (s, sp) pair
+	 * cells, normalizing alpha at each position and dividing beta by the same
+	 * normalizers. The potentials of a position are shifted by their maximum,
+	 * so they are at most 1. Returns false if a normalizer underflows or beta
+	 * overflows; the marginals are then left undefined.
+	 */
+	private boolean computeScaledMarginals() {
+		double logZ = 0;
+		for (int i = 0; i <= length; i++) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int a = 0, e = edgeOffset[i]; a < n0; a++) {
+				double ns = nodeScore[nodeOffset[i] + a];
+				for (int k = 0; k < n1 * n2; k++, e++) {
+					max = Math.max(max, edgeScore[e] + ns);
+				}
+			}
+			double norm = 0;
+			int e = edgeOffset[i];
+			for (int a = 0; a < n0; a++) {
+				double ns = nodeScore[nodeOffset[i] + a] - max;
+				for (int b = 0; b < n1; b++) {
+					int prevPair = (i == 0 ? 0 : pairOffset[i-1] + b * n2);
+					double sum = 0;
+					for (int c = 0; c < n2; c++, e++) {
+						double p = Math.exp(edgeScore[e] + ns);
+						potential[e] = p;
+						sum += (i == 0 ? 1.0 : alpha[prevPair + c]) * p;
+					}
+					alpha[pairOffset[i] + a * n1 + b] = sum;
+					norm += sum;
+				}
+			}
+			if (!(norm >= Double.MIN_NORMAL)) {
+				return false;
+			}
+			for (int k = 0; k < n0 * n1; k++) {
+				alpha[pairOffset[i] + k] /= norm;
+			}
+			scale[i] = norm;
+			logZ += max + Math.log(norm);
+		}
+		// the final position only allows SN
+		for (int b = 0; b < states[length+1].length; b++) {
+			beta[pairOffset[length] + b] = 1;
+		}
+		for (int i = length; i > 0; i--) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			int prevPairs = pairOffset[i-1];
+			for (int k = 0; k < n1 * n2; k++) {
+				beta[prevPairs + k] = 0;
+			}
+			int e = edgeOffset[i];
+			for (int a = 0; a < n0; a++) {
+				for (int b = 0; b < n1; b++) {
+					double bb = beta[pairOffset[i] + a * n1 + b] / scale[i];
+					int prevPair = prevPairs + b * n2;
+					for (int c = 0; c < n2; c++, e++) {
+						beta[prevPair + c] += potential[e] * bb;
+					}
+				}
+			}
+			double sum = 0;
+			for (int k = 0; k < n1 * n2; k++) {
+				sum += beta[prevPairs + k];
+			}
+			if (!(sum <= Double.MAX_VALUE)) {
+				return false;
+			}
+		}
+		for (int a = 0; a < states[2].length; a++) {
+			nodeMarginal[nodeOffset[0] + a] = edgeMarginal[edgeOffset[0] + a] =
+					alpha[pairOffset[0] + a] * beta[pairOffset[0] + a];
+		}
+		for (int i = 1; i <= length; i++) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			int e = edgeOffset[i];
+			for (int a = 0; a < n0; a++) {
+				double q = 0;
+				for (int b = 0; b < n1; b++) {
+					int pair = pairOffset[i] + a * n1 + b;
+					int prevPair = pairOffset[i-1] + b * n2;
+					double bb = beta[pair] / scale[i];
+					for (int c = 0; c < n2; c++, e++) {
+						edgeMarginal[e] = alpha[prevPair + c] * potential[e] * bb;
+					}
+					q += alpha[pair] * beta[pair];
+				}
+				nodeMarginal[nodeOffset[i] + a] = q;
+			}
+		}
+		logNorm = logZ;
+		probabilitySpace = true;
+		return true;
+	}
+
 	public void addToEmpirical(int sequenceID, int[] gold, double[] empirical) {
 		for (int i = 0; i <= gold.length; i++) {
 			int s = (i == gold.length ? SN : gold[i]);
@@ -133,49 +447,117 @@ public class SecondOrderFactorGraph {
 		}
 	}
 	
-	public void addToExpectation(int sequenceID, double[] empirical,
+	/**
+	 * Adds the expected feature counts of the sentence, times multiplier.
+	 * Emission features are added once per state with its node marginal, and
+	 * transition features once per transition. States and transitions whose
+	 * marginal is at most expectationCutoff are left out, and their
+	 * probability mass is added to skippedMass.
+	 */
+	public void addToExpectation(int sequenceID, SparseAccumulator empirical,
 			double multiplier) {
 		for (int i = 0; i <= length; i++) {
-			for (int s : fiter.states(sequenceID, i)) {
-				for (int sp : fiter.states(sequenceID, i-1)) {
-					for (int spp : fiter.states(sequenceID, i-2)) {
-						if (!Double.isInfinite(edgeMarginal[i][s][sp][spp])) {
-							double marginal = Math.exp(
-									edgeMarginal[i][s][sp][spp]) * multiplier;
-							potentialFunction.addToEmpirical(sequenceID, i,
-									s, sp, spp, empirical, marginal);
+			int[] s0 = states[i+2], s1 = states[i+1], s2 = states[i];
+			int e = edgeOffset[i];
+			for (int a = 0; a < s0.length; a++, e += s1.length * s2.length) {
+				int s = s0[a];
+				double q = nodeProbability(nodeOffset[i] + a);
+				if (q <= expectationCutoff) {
+					skippedMass += q;
+					continue;
+				}
+				potentialFunction.addEmissionsToEmpirical(sequenceID, i, s,
+						empirical, q * multiplier);
+				int t = e;
+				for (int sp : s1) {
+					for (int spp : s2) {
+						double marginal = edgeProbability(t++);
+						if (marginal <= expectationCutoff) {
+							skippedMass += marginal;
+							continue;
 						}
+						potentialFunction.addTransitionsToEmpirical(s, sp, spp,
+								empirical, marginal * multiplier);
 					}
 				}
 			}
 		}
+		numExpectedPositions += length + 1;
 	}
 	
-	private void decodePosterior() {
+	public void decodePosterior() {
 		for (int i = 0; i < length; i++) {
 			decode[i] = 0;
 			double maxq = Double.NEGATIVE_INFINITY;
-			for (int j : fiter.states(sequenceID, i)) {
-				double q = Math.exp(nodeMarginal[i][j]);
+			int[] si = states[i+2];
+			for (int a = 0; a < si.length; a++) {
+				double q = nodeProbability(nodeOffset[i] + a);
 				if (q > maxq) {
-					decode[i] = j;
+					decode[i] = si[a];
 					maxq = q;
 				}
 			}
 		}
 	}
 	
-	public double decodeAndEvaluate(int[] gold) {
-		if (best == null) {
-			best = new double[maxLength][numStates][numStates];
-			prev = new int[maxLength][numStates][numStates];
-			decode = new int[maxLength];
+	/**
+	 * Fills decode with the highest scoring state sequence. Viterbi runs over
+	 * the same (s, sp) pair cells as alpha, with prev holding the local index
+	 * of the best spp. Only needs the scores, so computeMarginals() does not
+	 * have to be called first.
+	 */
+	public void decodeViterbi() {
+		for (int a = 0; a < states[2].length; a++) {
+			best[pairOffset[0] + a] = edgeScore[edgeOffset[0] + a] +
+					nodeScore[nodeOffset[0] + a];
 		}
-		decodePosterior();
+		for (int i = 1; i <= length; i++) {
+			int n0 = states[i+2].length, n1 = states[i+1].length,
+				n2 = states[i].length;
+			int e = edgeOffset[i];
+			for (int a = 0; a < n0; a++) {
+				double ns = nodeScore[nodeOffset[i] + a];
+				for (int b = 0; b < n1; b++) {
+					int prevPair = pairOffset[i-1] + b * n2;
+					double maxScore = Double.NEGATIVE_INFINITY;
+					int argmax = 0;
+					for (int c = 0; c < n2; c++, e++) {
+						double score = best[prevPair + c] + edgeScore[e];
+						if (score > maxScore) {
+							maxScore = score;
+							argmax = c;
+						}
+					}
+					best[pairOffset[i] + a * n1 + b] = maxScore + ns;
+					prev[pairOffset[i] + a * n1 + b] = argmax;
+				}
+			}
+		}
+		// the final position only allows SN
+		int a = 0, b = 0;
+		for (int k = 1; k < states[length+1].length; k++) {
+			if (best[pairOffset[length] + k] > best[pairOffset[length] + b]) {
+				b = k;
+			}
+		}
+		for (int i = length; i > 0; i--) {
+			decode[i-1] = states[i+1][b];
+			int c = prev[pairOffset[i] + a * states[i+1].length + b];
+			a = b;
+			b = c;
+		}
+	}
+
+	public double evaluate(int[] gold) {
 		double accuracy = 0;
 		for (int i = 0; i < length; i++) { 
 			if (gold[i] == decode[i]) ++ accuracy;
 		}
 		return accuracy;
 	}
+
+	public double decodeAndEvaluate(int[] gold) {
+		decodePosterior();
+		return evaluate(gold);
+	}
 }
@@ -0,0 +1,39 @@
+package parallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out fixed-size chunks of the index range [0, size) to pool workers
+ * from a shared cursor, for loops over nodes or features whose iterations
+ * are independent. Chunk c always covers the same indices, so results
+ * combined per chunk in chunk order do not depend on which worker ran it.
+ */
+public class RangeScheduler {
+	public final int size, chunkSize, numChunks;
+	private final AtomicInteger cursor;
+
+	public RangeScheduler(int size, int chunkSize) {
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.numChunks = (size + chunkSize - 1) / chunkSize;
+		this.cursor = new AtomicInteger(0);
+	}
+
+	public void reset() {
+		cursor.set(0);
+	}
+
+	/** Returns the next chunk ID, or -1 once all chunks are handed out. */
+	public int next() {
+		int c = cursor.getAndIncrement();
+		return c < numChunks ? c : -1;
+	}
+
+	public int start(int chunk) {
+		return chunk * chunkSize;
+	}
+
+	public int end(int chunk) {
+		return Math.min(size, (chunk + 1) * chunkSize);
+	}
+}
@@ -0,0 +1,82 @@
+package parallel;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.AbstractFactorIterator;
+import data.AbstractCorpus;
+
+/**
+ * Hands out sentence IDs to pool workers in order of decreasing lattice cost.
+ * Workers pull the next sentence from a shared cursor instead of owning a
+ * fixed contiguous range, so a worker that drew short sentences keeps taking
+ * new ones while another is still busy with a long one, and the most
+ * expensive sentences are started first.
+ *
+ * The cost of a sentence is the number of lattice transitions, i.e. the sum
+ * over positions of the product of the allowed state counts at the last two
+ * (first-order) or three (second-order) positions.
+ */
+public class SentenceScheduler {
+	private final int[] jobs;
+	private final AtomicInteger cursor;
+
+	public SentenceScheduler(AbstractCorpus corpus,
+			AbstractFactorIterator fiter, int order, int[] sentenceIDs) {
+		// sort by (cost, position) packed into one long, most expensive last
+		long[] keys = new long[sentenceIDs.length];
+		for (int k = 0; k < sentenceIDs.length; k++) {
+			long cost = latticeCost(corpus, fiter, order, sentenceIDs[k]);
+			keys[k] = (cost << 32) | k;
+		}
+		Arrays.sort(keys);
+		jobs = new int[sentenceIDs.length];
+		for (int k = 0; k < keys.length; k++) {
+			jobs[k] = sentenceIDs[(int) keys[keys.length - 1 - k]];
+		}
+		cursor = new AtomicInteger(0);
+	}
+
+	public SentenceScheduler(AbstractCorpus corpus,
+			AbstractFactorIterator fiter, int order) {
+		this(corpus, fiter, order, allSentences(corpus));
+	}
+
+	private static int[] allSentences(AbstractCorpus corpus) {
+		int[] sids = new int[corpus.numInstances];
+		for (int sid = 0; sid < sids.length; sid++) {
+			sids[sid] = sid;
+		}
+		return sids;
+	}
+
+	public static long latticeCost(AbstractCorpus corpus,
+			AbstractFactorIterator fiter, int order, int sid) {
+		int length = corpus.getInstance(sid).length;
+		long cost = 0;
+		for (int i = 0; i <= length; i++) {
+			long c = fiter.states(sid, i).length *
+					fiter.states(sid, i - 1).length;
+			if (order > 1) {
+				c *= fiter.states(sid, i - 2).length;
+			}
+			cost += c;
+		}
+		return cost;
+	}
+
+	/** Rewinds the cursor; call before handing the workers to the pool. */
+	public void reset() {
+		cursor.set(0);
+	}
+
+	/** Returns the next sentence ID to process, or -1 when all are taken. */
+	public int next() {
+		int k = cursor.getAndIncrement();
+		return k < jobs.length ? jobs[k] : -1;
+	}
+
+	public int numJobs() {
+		return jobs.length;
+	}
+}
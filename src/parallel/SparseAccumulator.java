@@ -0,0 +1,117 @@
+package parallel;
+
+/**
+ * Per-worker feature count buffer that remembers which indices it touched.
+ * Values are kept in a dense array so that adding stays a plain array update,
+ * but clearing and merging only visit the touched indices, which for a worker
+ * that saw a fraction of the corpus is usually a small part of the features.
+ */
+public class SparseAccumulator {
+	private final double[] values;
+	private final boolean[] isTouched;
+	private int[] touched;
+	private int numTouched;
+
+	public SparseAccumulator(int size) {
+		values = new double[size];
+		isTouched = new boolean[size];
+		touched = new int[Math.max(16, size / 64)];
+		numTouched = 0;
+	}
+
+	public void add(int index, double value) {
+		if (!isTouched[index]) {
+			if (numTouched == touched.length) {
+				int[] grown = new int[Math.min(values.length,
+						touched.length * 2)];
+				System.arraycopy(touched, 0, grown, 0, numTouched);
+				touched = grown;
+			}
+			isTouched[index] = true;
+			touched[numTouched++] = index;
+		}
+		values[index] += value;
+	}
+
+	/** Adds scale * fv[j] at index fid[j]; a null fid is a no-op. */
+	public void add(int[] fid, double[] fv, double scale) {
+		if (fid == null) {
+			return;
+		}
+		for (int j = 0; j < fid.length; j++) {
+			add(fid[j], scale * fv[j]);
+		}
+	}
+
+	public double get(int index) {
+		return values[index];
+	}
+
+	public int numTouched() {
+		return numTouched;
+	}
+
+	public void clear() {
+		for (int k = 0; k < numTouched; k++) {
+			values[touched[k]] = 0;
+			isTouched[touched[k]] = false;
+		}
+		numTouched = 0;
+	}
+
+	/** Adds the touched entries of other into this accumulator. */
+	public void merge(SparseAccumulator other) {
+		for (int k = 0; k < other.numTouched; k++) {
+			int index = other.touched[k];
+			add(index, other.values[index]);
+		}
+	}
+
+	/** Adds touched entries [from, to) of this accumulator into target. */
+	private void addTo(double[] target, int from, int to) {
+		for (int k = from; k < to; k++) {
+			target[touched[k]] += values[touched[k]];
+		}
+	}
+
+	/**
+	 * Adds the sum of all parts into target. The parts are merged pairwise in
+	 * log2(parts.length) parallel rounds; the merged touched list has unique
+	 * indices, so the final add into target is split among the workers
+	 * without conflicts. The parts are left in an unspecified state and must
+	 * be cleared before reuse.
+	 */
+	public static void reduce(final SparseAccumulator[] parts,
+			final double[] target, WorkerPool pool)
+			throws InterruptedException {
+		int n = parts.length;
+		for (int stride = 1; stride < n; stride *= 2) {
+			int numMerges = (n - stride + 2 * stride - 1) / (2 * stride);
+			Runnable[] merges = new Runnable[numMerges];
+			for (int m = 0; m < numMerges; m++) {
+				final SparseAccumulator left = parts[2 * stride * m];
+				final SparseAccumulator right = parts[2 * stride * m + stride];
+				merges[m] = new Runnable() {
+					public void run() {
+						left.merge(right);
+					}
+				};
+			}
+			pool.runAll(merges);
+		}
+		final SparseAccumulator sum = parts[0];
+		int numChunks = Math.max(1, Math.min(pool.getNumWorkers(),
+				sum.numTouched / 1024));
+		Runnable[] chunks = new Runnable[numChunks];
+		for (int c = 0; c < numChunks; c++) {
+			final int from = (int) ((long) sum.numTouched * c / numChunks);
+			final int to = (int) ((long) sum.numTouched * (c + 1) / numChunks);
+			chunks[c] = new Runnable() {
+				public void run() {
+					sum.addTo(target, from, to);
+				}
+			};
+		}
+		pool.runAll(chunks);
+	}
+}
@@ -0,0 +1,59 @@
+package parallel;
+
+/**
+ * Busy time of each worker in one parallel phase, accumulated over all the
+ * runs of that phase since the last clear(). A max/mean ratio close to 1
+ * means the sentences were evenly spread over the workers.
+ */
+public class WorkerLoad {
+	private final String name;
+	private long[] busyNanos;
+	private long wallNanos;
+	private int numRuns;
+
+	public WorkerLoad(String name) {
+		this.name = name;
+		this.busyNanos = new long[0];
+		clear();
+	}
+
+	synchronized void addBusyTime(int worker, long nanos) {
+		if (worker >= busyNanos.length) {
+			long[] grown = new long[worker + 1];
+			System.arraycopy(busyNanos, 0, grown, 0, busyNanos.length);
+			busyNanos = grown;
+		}
+		busyNanos[worker] += nanos;
+	}
+
+	synchronized void addRun(long nanos) {
+		wallNanos += nanos;
+		numRuns++;
+	}
+
+	public synchronized double getImbalance() {
+		long max = 0, sum = 0;
+		for (long t : busyNanos) {
+			max = Math.max(max, t);
+			sum += t;
+		}
+		return sum == 0 ? 1.0 : (double) max * busyNanos.length / sum;
+	}
+
+	public synchronized void print() {
+		System.out.print(String.format("[load::%s]\truns::\t%d\twall::\t%.2f",
+				name, numRuns, 1e-9 * wallNanos));
+		System.out.print("\tbusy::");
+		for (long t : busyNanos) {
+			System.out.print(String.format("\t%.2f", 1e-9 * t));
+		}
+		System.out.println(String.format("\t(sec)\tmax/mean::\t%.3f",
+				getImbalance()));
+	}
+
+	public synchronized void clear() {
+		busyNanos = new long[busyNanos.length];
+		wallNanos = 0;
+		numRuns = 0;
+	}
+}
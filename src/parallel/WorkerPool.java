@@ -0,0 +1,137 @@
+package parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of long-lived worker threads shared by the trainers and the
+ * constraint projectors. Callers create their workers (Runnables holding the
+ * per-worker lattices and buffers) once, and hand the same array to runAll()
+ * in every iteration, so neither threads nor scratch state are re-created
+ * per objective evaluation.
+ */
+public class WorkerPool {
+	private static WorkerPool sharedPool = null;
+
+	private volatile int numWorkers;
+	private final ThreadPoolExecutor executor;
+
+	public WorkerPool(int numWorkers) {
+		this.numWorkers = numWorkers;
+		this.executor = new ThreadPoolExecutor(numWorkers, numWorkers, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int numCreated = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "worker-" + (numCreated++));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Returns the process-wide pool, creating it on first use. A pool with
+	 * fewer threads than requested is grown in place, so callers that
+	 * already hold it share the new threads.
+	 */
+	public static synchronized WorkerPool getSharedPool(int numWorkers) {
+		if (sharedPool == null) {
+			sharedPool = new WorkerPool(numWorkers);
+		}
+		else if (sharedPool.numWorkers < numWorkers) {
+			sharedPool.grow(numWorkers);
+		}
+		return sharedPool;
+	}
+
+	/** Raises the number of threads to numWorkers. */
+	private synchronized void grow(int numWorkers) {
+		// raise the maximum first, it may not be below the core size
+		executor.setMaximumPoolSize(numWorkers);
+		executor.setCorePoolSize(numWorkers);
+		this.numWorkers = numWorkers;
+	}
+
+	public int getNumWorkers() {
+		return numWorkers;
+	}
+
+	/**
+	 * Runs all tasks on the pool and blocks until every one of them has
+	 * finished. The first exception thrown by a task is re-thrown to the
+	 * caller once all tasks are done.
+	 */
+	public void runAll(Runnable[] tasks) throws InterruptedException {
+		runAll(tasks, null);
+	}
+
+	/**
+	 * Same as above, and adds the busy time of each task (indexed by its
+	 * position in tasks) and the wall time of the call to load.
+	 */
+	public void runAll(Runnable[] tasks, final WorkerLoad load)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		List<Future<?>> futures = new ArrayList<Future<?>>(tasks.length);
+		for (int i = 0; i < tasks.length; i++) {
+			final int worker = i;
+			final Runnable task = tasks[i];
+			futures.add(executor.submit(load == null ? task : new Runnable() {
+				public void run() {
+					long taskStart = System.nanoTime();
+					task.run();
+					load.addBusyTime(worker, System.nanoTime() - taskStart);
+				}
+			}));
+		}
+		// wait for every task even after one failed or we were interrupted,
+		// since the others still work on the caller's shared state
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (failure != null) {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new RuntimeException(failure);
+		}
+		if (interrupted) {
+			throw new InterruptedException();
+		}
+		if (load != null) {
+			load.addRun(System.nanoTime() - start);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,52 @@
+package programs;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import config.PosConfig;
+import data.NGramMapper;
+import data.SparseSimilarityGraph;
+
+/**
+ * Converts a text graph (node \t neighbor \t weight) to the binary CSR
+ * format that SparseSimilarityGraph memory-maps. The number of nodes is
+ * taken from the n-gram index, like PosCorpus does, so nodes without edges
+ * at the end of the ID range are kept.
+ *
+ * Usage: -graph-path in.grph -ngram-path index.idx -output-path out.csr
+ */
+public class ConvertGraph {
+	public static void main(String[] args) throws IOException {
+		PosConfig config = new PosConfig(args);
+
+		int numNodes = new NGramMapper(config).index2ngram.size();
+		// nodes are numbered from 1 in the text format
+		int maxNode = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(
+				config.graphPath));
+		String currLine;
+		while ((currLine = reader.readLine()) != null) {
+			String[] info = currLine.trim().split("\t");
+			if (info.length < 3) {
+				continue;
+			}
+			maxNode = Math.max(maxNode, Math.max(Integer.parseInt(info[0]),
+					Integer.parseInt(info[1])));
+		}
+		reader.close();
+		if (maxNode > numNodes) {
+			throw new IOException(String.format("%s has node %d, but the " +
+					"n-gram index %s has only %d nodes.", config.graphPath,
+					maxNode, config.ngramPath, numNodes));
+		}
+
+		long startTime = System.currentTimeMillis();
+		SparseSimilarityGraph graph = new SparseSimilarityGraph(
+				config.graphPath, numNodes);
+		graph.save(config.outputPath);
+		System.out.println(String.format("Converted graph with %d nodes and " +
+				"%d edges to %s in %d ms.", numNodes, graph.numEdges,
+				config.outputPath, System.currentTimeMillis() - startTime));
+	}
+}
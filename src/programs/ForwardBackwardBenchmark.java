@@ -0,0 +1,192 @@
+package programs;
+
+import java.io.IOException;
+import java.util.Random;
+
+import models.AbstractFactorIterator;
+import models.FirstOrderFactorGraph;
+import models.PrunedTagIterator;
+import models.SecondOrderFactorGraph;
+import config.PosConfig;
+import data.AbstractSequence;
+import data.PosCorpus;
+import features.PosFOPotentialFunction;
+import features.PosSOPotentialFunction;
+import features.ScoreCache;
+
+/**
+ * Times log-space against scaled forward-backward on the sentences of a
+ * corpus, for the first and the second order model, and reports how often
+ * the scaled pass fell back to log space and how far apart the node
+ * marginals and log normalizers of the two are.
+ *
+ * Usage: -data-path in1,in2,.. -umap-path map -lang-name lang
+ *        [-num-labels n] [-random-seed n]
+ *
+ * Parameters are drawn from N(0, 1); the first round over the corpus only
+ * warms up and compares, the other rounds are timed.
+ */
+public class ForwardBackwardBenchmark {
+	static final int numRounds = 4;
+
+	public static void main(String[] args) throws IOException {
+		PosConfig config = new PosConfig(args);
+		config.print(System.out);
+
+		String[] dataFiles = config.dataPath.split(",");
+		PosCorpus corpus = new PosCorpus(dataFiles, null, config);
+		RandomSampingHelper.resampleTrains(config, corpus);
+		AbstractFactorIterator fiter = new PrunedTagIterator(corpus);
+		Random random = new Random(config.randomSeed);
+
+		PosFOPotentialFunction foFunction = new PosFOPotentialFunction(corpus,
+				config);
+		ScoreCache foCache = foFunction.createScoreCache();
+		foFunction.cacheScores(foCache,
+				randomParameters(foFunction.getNumFeatures(), random));
+		benchmark("first-order", corpus, fiter,
+				lattice(new FirstOrderFactorGraph(corpus, foFunction, fiter)),
+				lattice(new FirstOrderFactorGraph(corpus, foFunction, fiter)),
+				foCache, config.backoff);
+
+		PosSOPotentialFunction soFunction = new PosSOPotentialFunction(corpus,
+				config);
+		ScoreCache soCache = soFunction.createScoreCache();
+		soFunction.cacheScores(soCache,
+				randomParameters(soFunction.getNumFeatures(), random));
+		benchmark("second-order", corpus, fiter,
+				lattice(new SecondOrderFactorGraph(corpus, soFunction, fiter)),
+				lattice(new SecondOrderFactorGraph(corpus, soFunction, fiter)),
+				soCache, config.backoff);
+	}
+
+	private static double[] randomParameters(int numFeatures, Random random) {
+		double[] parameters = new double[numFeatures];
+		for (int i = 0; i < numFeatures; i++) {
+			parameters[i] = random.nextGaussian();
+		}
+		return parameters;
+	}
+
+	/**
+	 * The part of a lattice that the benchmark uses, so that one loop times
+	 * both orders.
+	 */
+	private static abstract class Lattice {
+		abstract void setScaledMarginals(boolean scaled);
+		abstract void computeScores(AbstractSequence instance,
+				ScoreCache cache, double backoff);
+		abstract void computeMarginals();
+		abstract double getNodeProbability(int i, int s);
+		abstract double getLogNorm();
+		abstract long getNumLogSpaceFallbacks();
+	}
+
+	private static Lattice lattice(final FirstOrderFactorGraph graph) {
+		return new Lattice() {
+			void setScaledMarginals(boolean scaled) {
+				graph.scaledMarginals = scaled;
+			}
+			void computeScores(AbstractSequence instance, ScoreCache cache,
+					double backoff) {
+				graph.computeScores(instance, cache, backoff);
+			}
+			void computeMarginals() {
+				graph.computeMarginals();
+			}
+			double getNodeProbability(int i, int s) {
+				return graph.getNodeProbability(i, s);
+			}
+			double getLogNorm() {
+				return graph.logNorm;
+			}
+			long getNumLogSpaceFallbacks() {
+				return graph.numLogSpaceFallbacks;
+			}
+		};
+	}
+
+	private static Lattice lattice(final SecondOrderFactorGraph graph) {
+		return new Lattice() {
+			void setScaledMarginals(boolean scaled) {
+				graph.scaledMarginals = scaled;
+			}
+			void computeScores(AbstractSequence instance, ScoreCache cache,
+					double backoff) {
+				graph.computeScores(instance, cache, backoff);
+			}
+			void computeMarginals() {
+				graph.computeMarginals();
+			}
+			double getNodeProbability(int i, int s) {
+				return graph.getNodeProbability(i, s);
+			}
+			double getLogNorm() {
+				return graph.logNorm;
+			}
+			long getNumLogSpaceFallbacks() {
+				return graph.numLogSpaceFallbacks;
+			}
+		};
+	}
+
+	private static void benchmark(String name, PosCorpus corpus,
+			AbstractFactorIterator fiter, Lattice logGraph, Lattice scaledGraph,
+			ScoreCache cache, double backoff) {
+		scaledGraph.setScaledMarginals(true);
+		long logNanos = 0, scaledNanos = 0;
+		double maxMarginalDiff = 0, maxNormDiff = 0;
+		for (int round = 0; round < numRounds; round++) {
+			for (int sid = 0; sid < corpus.numInstances; sid++) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				logGraph.computeScores(instance, cache, backoff);
+				scaledGraph.computeScores(instance, cache, backoff);
+				long start = System.nanoTime();
+				logGraph.computeMarginals();
+				long mid = System.nanoTime();
+				scaledGraph.computeMarginals();
+				long end = System.nanoTime();
+				if (round > 0) {
+					logNanos += mid - start;
+					scaledNanos += end - mid;
+					continue;
+				}
+				for (int i = 0; i <= instance.length; i++) {
+					for (int s : fiter.states(sid, i)) {
+						maxMarginalDiff = Math.max(maxMarginalDiff, Math.abs(
+								logGraph.getNodeProbability(i, s) -
+								scaledGraph.getNodeProbability(i, s)));
+					}
+				}
+				maxNormDiff = Math.max(maxNormDiff, relativeDiff(
+						logGraph.getLogNorm(), scaledGraph.getLogNorm()));
+			}
+		}
+		print(name, corpus, logNanos, scaledNanos,
+				scaledGraph.getNumLogSpaceFallbacks(), maxMarginalDiff,
+				maxNormDiff);
+	}
+
+	private static double relativeDiff(double a, double b) {
+		return Math.abs(a - b) / Math.max(1, Math.abs(a));
+	}
+
+	private static void print(String name, PosCorpus corpus, long logNanos,
+			long scaledNanos, long numFallbacks, double maxMarginalDiff,
+			double maxNormDiff) {
+		long numTokens = 0;
+		for (int sid = 0; sid < corpus.numInstances; sid++) {
+			numTokens += corpus.getInstance(sid).length;
+		}
+		double timedRounds = numRounds - 1;
+		System.out.println(String.format("[%s]\tlog-space::\t%.0f tokens/sec" +
+				"\tscaled::\t%.0f tokens/sec\tspeedup::\t%.2f", name,
+				1e9 * timedRounds * numTokens / logNanos,
+				1e9 * timedRounds * numTokens / scaledNanos,
+				(double) logNanos / scaledNanos));
+		System.out.println(String.format("[%s]\tsentences::\t%d" +
+				"\tlog-space fallbacks::\t%d\tmax marginal diff::\t%.3e" +
+				"\tmax log-norm diff::\t%.3e", name, corpus.numInstances,
+				numFallbacks, maxMarginalDiff, maxNormDiff));
+	}
+}
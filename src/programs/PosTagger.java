@@ -0,0 +1,246 @@
+package programs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import models.AbstractFactorIterator;
+import models.FirstOrderFactorGraph;
+import models.SecondOrderFactorGraph;
+import parallel.SentenceScheduler;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
+import config.PosConfig;
+import data.AbstractCorpus;
+import data.AbstractSequence;
+import data.RegexHelper;
+import features.PosTaggingModel;
+import features.ScoreCache;
+
+/**
+ * Tags CoNLL files with a model from a checkpoint, written by the trainers
+ * (-checkpoint-path) or by TestHighOrderPos (-model-path), without loading
+ * the training corpus or extracting its features.
+ *
+ * Usage: -model-path model -data-path in1,in2,.. -output-path out
+ *        [-num-threads n] [-viterbi] [-scaled-marginals]
+ *
+ * Input is read in batches of sentences separated by blank lines; the word
+ * is the second column (or the only one). Each input line is written back
+ * with the predicted tag appended as an extra column.
+ */
+public class PosTagger {
+	static final int batchSize = 1000;
+
+	public static void main(String[] args)
+			throws IOException, InterruptedException {
+		PosConfig config = new PosConfig(args);
+		config.print(System.out);
+
+		PosTaggingModel model = new PosTaggingModel(config.modelPath);
+		TaggingBatch batch = new TaggingBatch(model);
+		WorkerPool pool = WorkerPool.getSharedPool(config.numThreads);
+		TaggingWorker[] workers = new TaggingWorker[config.numThreads];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new TaggingWorker(model, batch, config);
+		}
+		WorkerLoad decodeLoad = new WorkerLoad("decode");
+
+		BufferedWriter fout = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(config.outputPath), config.encoding));
+		long numSentences = 0, numTokens = 0;
+		long start = System.currentTimeMillis();
+		for (String dataFile : config.dataPath.split(",")) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(dataFile), config.encoding));
+			while (batch.read(reader) > 0) {
+				model.updateScoreCache();
+				batch.scheduler = new SentenceScheduler(batch, batch,
+						model.order);
+				pool.runAll(workers, decodeLoad);
+				batch.write(fout);
+				numSentences += batch.numInstances;
+				numTokens += batch.numTokens;
+			}
+			reader.close();
+		}
+		fout.close();
+		double seconds = Math.max(1e-3,
+				(System.currentTimeMillis() - start) / 1000.0);
+
+		System.out.println(String.format("Tagged %d sentences (%d tokens) " +
+				"in %.2f sec:\t%.1f sentences/sec\t%.1f tokens/sec",
+				numSentences, numTokens, seconds, numSentences / seconds,
+				numTokens / seconds));
+		decodeLoad.print();
+		System.out.println("Predictions written to " + config.outputPath);
+	}
+
+	/**
+	 * The sentences currently being tagged. Acts as the corpus and the factor
+	 * iterator of the workers' lattices; like PrunedTagIterator, punctuation
+	 * is only allowed the "." tag.
+	 */
+	static class TaggingBatch extends AbstractCorpus
+			implements AbstractFactorIterator {
+		PosTaggingModel model;
+		ArrayList<String[]> lines;
+		AbstractSequence[] instances;
+		int[][] predictions;
+		int[][][] allowedStates; // sentence, position
+		int numTokens;
+		SentenceScheduler scheduler;
+		final int[] S0, S00, SN, S, SPUNC;
+
+		TaggingBatch(PosTaggingModel model) {
+			this.model = model;
+			numStates = model.numStates;
+			numTags = model.numTags;
+			initialState = model.initialState;
+			initialStateSO = model.initialStateSO;
+			finalState = model.finalState;
+			S0 = new int[] { initialState };
+			S00 = new int[] { initialStateSO };
+			SN = new int[] { finalState };
+			S = new int[numTags];
+			for (int i = 0; i < numTags; i++) {
+				S[i] = i;
+			}
+			// without a "." tag punctuation is not restricted
+			int punc = model.lookupTag(".");
+			SPUNC = (punc >= 0 ? new int[] { punc } : S);
+			lines = new ArrayList<String[]>();
+			instances = new AbstractSequence[batchSize];
+			predictions = new int[batchSize][];
+			allowedStates = new int[batchSize][][];
+		}
+
+		/** Reads up to batchSize sentences and returns how many were read. */
+		int read(BufferedReader reader) throws IOException {
+			numInstances = 0;
+			numTokens = 0;
+			lines.clear();
+			ArrayList<String> sentence = new ArrayList<String>();
+			String currLine;
+			while (numInstances < batchSize) {
+				currLine = reader.readLine();
+				if (currLine != null && currLine.trim().length() > 0) {
+					sentence.add(currLine);
+					continue;
+				}
+				if (sentence.size() > 0) {
+					addSentence(sentence);
+					sentence.clear();
+				}
+				if (currLine == null) {
+					break;
+				}
+			}
+			return numInstances;
+		}
+
+		private void addSentence(ArrayList<String> sentence) {
+			int sid = numInstances++;
+			int length = sentence.size();
+			int[] tokens = new int[length];
+			allowedStates[sid] = new int[length][];
+			for (int i = 0; i < length; i++) {
+				String[] info = sentence.get(i).trim().split("\t");
+				String word = (info.length > 1 ? info[1] : info[0]).trim();
+				tokens[i] = model.mapWord(word);
+				allowedStates[sid][i] = RegexHelper.isPunctuation(word) ?
+						SPUNC : S;
+			}
+			instances[sid] = new AbstractSequence(sid, 0, tokens,
+					new int[length]);
+			lines.add(sentence.toArray(new String[length]));
+			numTokens += length;
+		}
+
+		@Override
+		public AbstractSequence getInstance(int id) {
+			return instances[id];
+		}
+
+		@Override
+		public int[] states(int sentenceID, int position) {
+			if (position < 0) {
+				return position < -1 ? S00 : S0;
+			}
+			else if (position < instances[sentenceID].length) {
+				return allowedStates[sentenceID][position];
+			}
+			else {
+				return SN;
+			}
+		}
+
+		void write(BufferedWriter fout) throws IOException {
+			for (int sid = 0; sid < numInstances; sid++) {
+				String[] sentence = lines.get(sid);
+				for (int i = 0; i < sentence.length; i++) {
+					fout.write(sentence[i] + "\t" +
+							model.getTag(predictions[sid][i]) + "\n");
+				}
+				fout.write("\n");
+			}
+		}
+	}
+
+	static class TaggingWorker implements Runnable {
+		TaggingBatch batch;
+		ScoreCache cache;
+		FirstOrderFactorGraph firstOrderGraph;
+		SecondOrderFactorGraph secondOrderGraph;
+		boolean viterbi;
+
+		TaggingWorker(PosTaggingModel model, TaggingBatch batch,
+				PosConfig config) {
+			this.batch = batch;
+			this.cache = model.getScoreCache();
+			this.viterbi = config.viterbiDecoding;
+			if (model.order == 1) {
+				firstOrderGraph = new FirstOrderFactorGraph(batch, null, batch);
+				firstOrderGraph.scaledMarginals = config.scaledMarginals;
+			} else {
+				secondOrderGraph = new SecondOrderFactorGraph(batch, null,
+						batch);
+				secondOrderGraph.scaledMarginals = config.scaledMarginals;
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int sid; (sid = batch.scheduler.next()) >= 0; ) {
+				AbstractSequence instance = batch.getInstance(sid);
+				int[] decode;
+				if (firstOrderGraph != null) {
+					firstOrderGraph.computeScores(instance, cache, 0);
+					if (viterbi) {
+						firstOrderGraph.decodeViterbi();
+					} else {
+						firstOrderGraph.computeMarginals();
+						firstOrderGraph.decodePosterior();
+					}
+					decode = firstOrderGraph.decode;
+				} else {
+					secondOrderGraph.computeScores(instance, cache, 0);
+					if (viterbi) {
+						secondOrderGraph.decodeViterbi();
+					} else {
+						secondOrderGraph.computeMarginals();
+						secondOrderGraph.decodePosterior();
+					}
+					decode = secondOrderGraph.decode;
+				}
+				batch.predictions[sid] = Arrays.copyOf(decode, instance.length);
+			}
+		}
+	}
+}
@@ -7,6 +7,7 @@ import models.PrunedTagIterator;
 import config.PosConfig;
 import trainers.SecondOrderEMTrainer;
 import util.MemoryTracker;
+import data.Checkpoint;
 import data.NGramMapper;
 import data.PosCorpus;
 import data.SparseSimilarityGraph;
@@ -46,6 +47,18 @@ public class TestHighOrderPos {
 		System.out.print("Testing accuracy::\t");
 		trainer.testModel(corpus.tests);
 		
+		if (!config.modelPath.isEmpty()) {
+			Checkpoint.Writer writer = Checkpoint.create(config.modelPath,
+					config, corpus);
+			try {
+				potentialFunction.writeModel(writer, trainer.getParameters());
+				writer.close();
+			} finally {
+				writer.abort();
+			}
+			System.out.println("Saved model to " + config.modelPath);
+		}
+		
 		mem.finish();
 		System.out.println("Memory usage:: " + mem.print());
 	}
@@ -1,5 +1,6 @@
 package trainers;
 
+import java.io.IOException;
 import java.util.Arrays;
 import analysis.GeneralTimer;
 import models.AbstractFactorIterator;
@@ -15,10 +16,16 @@ import optimization.linesearch.LineSearchMethod;
 import optimization.linesearch.WolfRuleLineSearch;
 import optimization.stopCriteria.CompositeStopingCriteria;
 import optimization.stopCriteria.NormalizedValueDifference;
+import parallel.SentenceScheduler;
+import parallel.SparseAccumulator;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
 import data.AbstractCorpus;
 import data.AbstractSequence;
+import data.Checkpoint;
 import data.SparseSimilarityGraph;
 import features.FirstOrderPotentialFunction;
+import features.ScoreCache;
 
 public class FirstOrderEMTrainer {
 	AbstractCorpus corpus;
@@ -27,9 +34,16 @@ public class FirstOrderEMTrainer {
 	SparseSimilarityGraph graph;
 	FirstOrderTypeEG constraint;
 	MStepObjective mstepObjective;
+	WorkerPool pool;
+	SentenceUpdateWorker[] updateWorkers;
+	SparseAccumulator[] localGradients;
+	SentenceMonitorWorker[] monitorWorkers;
+	SentenceScheduler updateScheduler, monitorScheduler;
+	WorkerLoad mstepLoad, decodeLoad;
 	
 	int numParameters;
 	double[] theta;
+	ScoreCache scoreCache;
 	double[] empiricalCounts;
 
 	Config config;
@@ -59,6 +73,7 @@ public class FirstOrderEMTrainer {
 	private void initializeModel() {
 		numParameters = potentialFunction.getNumFeatures();
 		theta = new double[numParameters];
+		scoreCache = potentialFunction.createScoreCache();
 		empiricalCounts = new double[numParameters];
 		prevStepSize = 1.0;
 		Arrays.fill(empiricalCounts, 0.0);
@@ -72,6 +87,18 @@ public class FirstOrderEMTrainer {
 				model.addToEmpirical(tid, instance.tags, empiricalCounts);
 			}
 		}
+		pool = WorkerPool.getSharedPool(config.numThreads);
+		updateScheduler = new SentenceScheduler(corpus, fiter, 1);
+		mstepLoad = new WorkerLoad("mstep");
+		decodeLoad = new WorkerLoad("decode");
+		updateWorkers = new SentenceUpdateWorker[config.numThreads];
+		localGradients = new SparseAccumulator[config.numThreads];
+		monitorWorkers = new SentenceMonitorWorker[config.numThreads];
+		for (int i = 0; i < config.numThreads; i++) {
+			localGradients[i] = new SparseAccumulator(numParameters);
+			updateWorkers[i] = new SentenceUpdateWorker(localGradients[i]);
+			monitorWorkers[i] = new SentenceMonitorWorker();
+		}
 		timer = new GeneralTimer();
 	}
 	
@@ -105,9 +132,30 @@ public class FirstOrderEMTrainer {
 		System.out.println("*** Combined objective::\t" + obj);
 		timer.stamp("mstep-end");
 		timer.printIntervalsInMins("mstep-start", "mstep-end");
+		mstepLoad.print();
+		mstepLoad.clear();
+		printSkippedMass();
 		return obj;
 	}
 	
+	/** Reports the marginal mass the M-step expectations left out. */
+	private void printSkippedMass() {
+		double skippedMass = 0;
+		long numPositions = 0;
+		for (SentenceUpdateWorker worker : updateWorkers) {
+			skippedMass += worker.model.skippedMass;
+			numPositions += worker.model.numExpectedPositions;
+			worker.model.skippedMass = 0;
+			worker.model.numExpectedPositions = 0;
+		}
+		if (config.expectationCutoff > 0) {
+			System.out.println(String.format("[mstep]\texpectation cutoff::" +
+					"\t%g\tskipped mass per position::\t%g",
+					config.expectationCutoff,
+					skippedMass / Math.max(1, numPositions)));
+		}
+	}
+	
 	private double corpusEStep() {
 		System.out.println("Corpus E Step");
 		timer.stamp("estep-start");
@@ -138,8 +186,17 @@ public class FirstOrderEMTrainer {
 		doAnalysis = false;
 		boolean success = false;
 		double prevObjective = Double.POSITIVE_INFINITY;
+		int firstIter = 0;
+		if (!config.resumePath.isEmpty()) {
+			double[] state = loadCheckpoint(config.resumePath);
+			if (state != null) {
+				firstIter = (int) state[0] + 1;
+				prevObjective = state[2];
+				success = state[3] > 0;
+			}
+		}
 		double prevTime = 1e-3 * System.currentTimeMillis();
-		for(currIter = 0; currIter < config.numEMIters && !success; currIter++) {
+		for(currIter = firstIter; currIter < config.numEMIters && !success; currIter++) {
 			System.out.println("Iteration:: " + currIter);
 			if(currIter > 0) {
 				corpusEStep();		
@@ -162,27 +219,94 @@ public class FirstOrderEMTrainer {
 			trainAcc = testModel(corpus.trains);
 			System.out.print("*** Testing:\t");
 			testAcc = testModel(corpus.tests);
+			decodeLoad.print();
+			decodeLoad.clear();
+			if (!config.checkpointPath.isEmpty()) {
+				saveCheckpoint(config.checkpointPath, prevObjective, success);
+			}
 		}
 		System.out.println("EM Success:\t" + success);
 	}
 	
+	/**
+	 * Saves theta with the state needed to continue after the current EM
+	 * iteration: the iteration, the step size, the objective, whether EM has
+	 * converged, the results of the last M-step and the E-step state.
+	 */
+	private void saveCheckpoint(String path, double prevObjective,
+			boolean success) {
+		try {
+			Checkpoint.Writer writer = Checkpoint.create(path, config, corpus);
+			try {
+				potentialFunction.writeModel(writer, theta);
+				writer.writeDoubles("trainer-state", new double[] {
+						currIter, prevStepSize, prevObjective, success ? 1 : 0,
+						mstepObjective.objective,
+						mstepObjective.labelLikelihood,
+						mstepObjective.softLikelihood,
+						mstepObjective.parameterRegularizer });
+				constraint.writeCheckpoint(writer);
+				writer.close();
+			} finally {
+				writer.abort();
+			}
+			System.out.println("Saved checkpoint of iteration " + currIter +
+					" to " + path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Restores theta and, if the checkpoint has it, the state written by
+	 * saveCheckpoint(), which is returned. Returns null for a checkpoint that
+	 * only holds parameters.
+	 */
+	private double[] loadCheckpoint(String path) {
+		try {
+			Checkpoint checkpoint = new Checkpoint(path);
+			try {
+				potentialFunction.checkModel(checkpoint);
+				checkpoint.readDoubles("parameters", theta);
+				System.out.println("Resumed parameters from " + path);
+				if (!checkpoint.hasSection("trainer-state")) {
+					return null;
+				}
+				double[] state = new double[8];
+				checkpoint.getDoubles("trainer-state").get(state);
+				prevStepSize = state[1];
+				mstepObjective = new MStepObjective(theta, state[4], state[5],
+						state[6], state[7]);
+				constraint.readCheckpoint(checkpoint, theta);
+				System.out.println("Resuming after EM iteration " +
+						(int) state[0]);
+				return state;
+			} finally {
+				checkpoint.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public double[] getParameters() {
+		return theta;
+	}
+	
 	public double testModel(int[] instanceIDs) {
-		SentenceMonitorThread[] threads =
-				new SentenceMonitorThread[config.numThreads];
 		double tokenAccuracy = .0, sequenceAccuracy = .0, tokenNorm = .0;
 		doAnalysis = false;
+		potentialFunction.cacheScores(scoreCache, theta);
 		try {
-			for(int i = 0; i < threads.length; i++) {
-				threads[i] = new SentenceMonitorThread(i, threads.length, instanceIDs);
-				threads[i].start();
-			}
-			for(int i = 0; i < threads.length; i++) {
-				threads[i].join();
-			}
-			for(int i = 0; i < threads.length; i++) {
-				tokenAccuracy += threads[i].numCorrectTokens;
-				sequenceAccuracy += threads[i].numCorrectSequences;
-				tokenNorm += threads[i].numTokens;
+			monitorScheduler = new SentenceScheduler(corpus, fiter, 1,
+					instanceIDs);
+			pool.runAll(monitorWorkers, decodeLoad);
+			for (SentenceMonitorWorker worker : monitorWorkers) {
+				tokenAccuracy += worker.numCorrectTokens;
+				sequenceAccuracy += worker.numCorrectSequences;
+				tokenNorm += worker.numTokens;
 			}	
 		} catch (InterruptedException e) {
 			e.printStackTrace();
@@ -196,21 +320,17 @@ public class FirstOrderEMTrainer {
 	}
 	
 	public double testAndAnalyze(int[] instanceIDs, String outputFileLabel) {
-		SentenceMonitorThread[] threads =
-				new SentenceMonitorThread[config.numThreads];
 		double tokenAccuracy = .0, sequenceAccuracy = .0, tokenNorm = .0;
 		doAnalysis = true;
+		potentialFunction.cacheScores(scoreCache, theta);
 		try {
-			for(int i = 0; i < threads.length; i++) {
-				threads[i] = new SentenceMonitorThread(i, threads.length,
-						instanceIDs);
-				threads[i].start();
-			}
-			for(int i = 0; i < threads.length; i++) threads[i].join();
-			for(int i = 0; i < threads.length; i++) {
-				tokenAccuracy += threads[i].numCorrectTokens;
-				sequenceAccuracy += threads[i].numCorrectSequences;
-				tokenNorm += threads[i].numTokens;
+			monitorScheduler = new SentenceScheduler(corpus, fiter, 1,
+					instanceIDs);
+			pool.runAll(monitorWorkers, decodeLoad);
+			for (SentenceMonitorWorker worker : monitorWorkers) {
+				tokenAccuracy += worker.numCorrectTokens;
+				sequenceAccuracy += worker.numCorrectSequences;
+				tokenNorm += worker.numTokens;
 			}	
 			tokenAccuracy /= tokenNorm;
 			System.out.print(String.format("token acc.\t%.3f%%",
@@ -239,7 +359,6 @@ public class FirstOrderEMTrainer {
 			parameterRegularizer, gpSquared;
 		int nrFeatures;
 		boolean transductive;
-		SentenceUpdateThread[] threads;
 		int numThetaUpdates;
 		double[] gradientInit;
 	
@@ -256,11 +375,23 @@ public class FirstOrderEMTrainer {
 					gradientInit[i] -= constraint.softEmpiricalCounts[i];
 				}
 			}
-			this.threads = new SentenceUpdateThread[config.numThreads];
 			this.numThetaUpdates = 0;
 			setParameters(parameters);
 		}
 		
+		/** Holds the results of an M-step restored from a checkpoint. */
+		public MStepObjective(double[] parameters, double objective,
+				double labelLikelihood, double softLikelihood,
+				double parameterRegularizer) {
+			this.nrFeatures = parameters.length;
+			this.gradient = new double[nrFeatures];
+			this.parameters = parameters;
+			this.objective = objective;
+			this.labelLikelihood = labelLikelihood;
+			this.softLikelihood = softLikelihood;
+			this.parameterRegularizer = parameterRegularizer;
+		}
+		
 		public void updateObjectiveAndGradient() { 
 			parameterRegularizer = twoNormSquared(parameters) /
 					(2.0 * gpSquared); 
@@ -273,25 +404,17 @@ public class FirstOrderEMTrainer {
 				softLikelihood -= parameters[i] *
 						constraint.softEmpiricalCounts[i];
 			}
+			potentialFunction.cacheScores(scoreCache, parameters);
 			try {
-				for (int i = 0; i < config.numThreads; i++) {
-					threads[i] = new SentenceUpdateThread(i, threads.length,
-							corpus.numInstances);
-					threads[i].start();
-				}
-				for (int i = 0; i < config.numThreads; i++)	{
-					threads[i].join();
-				}
+				updateScheduler.reset();
+				pool.runAll(updateWorkers, mstepLoad);
+				SparseAccumulator.reduce(localGradients, gradient, pool);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-			for (int i = 0; i < config.numThreads; i++) {
-				for (int j = 0; j < gradient.length; j++) {
-					gradient[j] += threads[i].localGradient[j];
-				}
-				labelLikelihood += threads[i].localLabelLikelihood;
-				softLikelihood += threads[i].localSoftLikelihood;
-				threads[i] = null;
+			for (SentenceUpdateWorker worker : updateWorkers) {
+				labelLikelihood += worker.localLabelLikelihood;
+				softLikelihood += worker.localSoftLikelihood;
 			}
 			objective = parameterRegularizer + config.labelStrength *
 					labelLikelihood;
@@ -331,46 +454,40 @@ public class FirstOrderEMTrainer {
 		public String toString() {
 			return "ocr discriminative model objective";
 		}
+	}
+	
+	private class SentenceUpdateWorker implements Runnable {
+		private SparseAccumulator localGradient;
+		private double localLabelLikelihood, localSoftLikelihood;
+		private FirstOrderFactorGraph model;
+		
+		public SentenceUpdateWorker(SparseAccumulator localGradient) {
+			this.localGradient = localGradient;
+			model = new FirstOrderFactorGraph(corpus, potentialFunction,
+						fiter);
+			model.expectationCutoff = config.expectationCutoff;
+			model.scaledMarginals = config.scaledMarginals;
+		}
 		
-		private class SentenceUpdateThread extends Thread {
-			@SuppressWarnings("unused")
-			private final int threadID, startJobID, endJobID;
-			
-			private double[] localGradient;
-			private double localLabelLikelihood, localSoftLikelihood;
-			private FirstOrderFactorGraph model;
-			
-			public SentenceUpdateThread(int myID, int numThreads, int numJobs) {
-				threadID = myID;
-				int batchSize = numJobs / numThreads;
-				startJobID = myID * batchSize;
-				endJobID = (myID < numThreads - 1 ?
-						startJobID + batchSize : numJobs);
-				localGradient = new double[theta.length];
-				model = new FirstOrderFactorGraph(corpus, potentialFunction,
-							fiter);
-			}
-			
-			public void run() {
-				localLabelLikelihood = 0;
-				localSoftLikelihood = 0;
-				Arrays.fill(localGradient, 0.0);
-				for(int sid = startJobID; sid < endJobID; sid ++) {
-					AbstractSequence instance = corpus.getInstance(sid);
-					if (!transductive && !instance.isLabeled) {
-						continue;
-					}
-					model.computeScores(instance, parameters, config.backoff);
-					model.computeMarginals();	
-					if (instance.isLabeled) {
-						model.addToExpectation(sid, localGradient,
-								config.labelStrength);
-						localLabelLikelihood += model.logNorm;
-					} else {
-						model.addToExpectation(sid, localGradient, 1.0);
-						localSoftLikelihood += model.logNorm;
-					}	
+		public void run() {
+			localLabelLikelihood = 0;
+			localSoftLikelihood = 0;
+			localGradient.clear();
+			for (int sid; (sid = updateScheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				if (!transductive && !instance.isLabeled) {
+					continue;
 				}
+				model.computeScores(instance, scoreCache, config.backoff);
+				model.computeMarginals();	
+				if (instance.isLabeled) {
+					model.addToExpectation(sid, localGradient,
+							config.labelStrength);
+					localLabelLikelihood += model.logNorm;
+				} else {
+					model.addToExpectation(sid, localGradient, 1.0);
+					localSoftLikelihood += model.logNorm;
+				}	
 			}
 		}
 	}
@@ -391,32 +508,29 @@ public class FirstOrderEMTrainer {
 		System.out.println("\n");
 	}
 	
-	private class SentenceMonitorThread extends Thread {
-		@SuppressWarnings("unused")
-		private final int threadID, startJobID, endJobID;
-		private final int[] jobs;
+	private class SentenceMonitorWorker implements Runnable {
 		private FirstOrderFactorGraph model;
 		public double numCorrectTokens, numCorrectSequences, numTokens;
 		
-		public SentenceMonitorThread(int threadID, int numThreads, int[] jobs) {
-			this.threadID = threadID;
-			this.jobs = jobs;
-			int batchSize = jobs.length / numThreads;
-			startJobID = threadID * batchSize;
-			endJobID = (threadID < numThreads - 1 ?
-					startJobID + batchSize : jobs.length);
+		public SentenceMonitorWorker() {
 			model = new FirstOrderFactorGraph(corpus, potentialFunction, fiter);
+			model.scaledMarginals = config.scaledMarginals;
 		}
 		
 		public void run() {
 			numCorrectTokens = 0;
 			numCorrectSequences = 0;
 			numTokens = 0;
-			for (int sid = startJobID; sid < endJobID; sid ++) {
-				AbstractSequence instance = corpus.getInstance(jobs[sid]);
-				model.computeScores(instance, theta, config.backoff);
-				model.computeMarginals();
-				double acc = model.decodeAndEvaluate(instance.tags);
+			for (int sid; (sid = monitorScheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				model.computeScores(instance, scoreCache, config.backoff);
+				if (config.viterbiDecoding) {
+					model.decodeViterbi();
+				} else {
+					model.computeMarginals();
+					model.decodePosterior();
+				}
+				double acc = model.evaluate(instance.tags);
 				numTokens += instance.length;
 				numCorrectTokens += acc;
 				numCorrectSequences += (acc == instance.length ? 1 : 0);
@@ -1,5 +1,6 @@
 package trainers;
 
+import java.io.IOException;
 import java.util.Arrays;
 import analysis.GeneralTimer;
 import analysis.GraphPropagationTester;
@@ -14,9 +15,15 @@ import optimization.gradientBasedMethods.stats.OptimizerStats;
 import optimization.linesearch.*;
 import optimization.stopCriteria.AverageValueDifference;
 import optimization.stopCriteria.CompositeStopingCriteria;
+import parallel.SentenceScheduler;
+import parallel.SparseAccumulator;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
 import data.AbstractCorpus;
 import data.AbstractSequence;
+import data.Checkpoint;
 import data.SparseSimilarityGraph;
+import features.ScoreCache;
 import features.SecondOrderPotentialFunction;
 
 
@@ -28,9 +35,16 @@ public class GraphBootstrappedTrainer {
 	SparseSimilarityGraph graph;
 	SecondOrderTypeEG constraint;
 	MStepObjective mstepObjective;
+	WorkerPool pool;
+	SentenceUpdateWorker[] updateWorkers;
+	SparseAccumulator[] localGradients;
+	SentenceMonitorWorker[] monitorWorkers;
+	SentenceScheduler updateScheduler, monitorScheduler;
+	WorkerLoad mstepLoad, decodeLoad;
 	
 	int numParameters;
 	double[] oldTheta, theta;
+	ScoreCache scoreCache;
 	double[] empiricalCounts, expectedCounts, softEmpiricalCounts;
 
 	Config config;
@@ -65,6 +79,7 @@ public class GraphBootstrappedTrainer {
 	{
 		numParameters = potentialFunction.getNumFeatures();
 		theta = new double[numParameters];
+		scoreCache = potentialFunction.createScoreCache();
 		oldTheta = new double[numParameters];
 		empiricalCounts = new double[numParameters];
 		expectedCounts = new double[numParameters];
@@ -99,6 +114,18 @@ public class GraphBootstrappedTrainer {
 				"\tUnlabeled discount factor:\t" + unlabeledDiscount);
 		System.out.println("Labeled strength:\t" + labeledStrength);
 		
+		pool = WorkerPool.getSharedPool(config.numThreads);
+		updateScheduler = new SentenceScheduler(corpus, fiter, 2);
+		mstepLoad = new WorkerLoad("mstep");
+		decodeLoad = new WorkerLoad("decode");
+		updateWorkers = new SentenceUpdateWorker[config.numThreads];
+		localGradients = new SparseAccumulator[config.numThreads];
+		monitorWorkers = new SentenceMonitorWorker[config.numThreads];
+		for(int i = 0; i < config.numThreads; i++) {
+			localGradients[i] = new SparseAccumulator(numParameters);
+			updateWorkers[i] = new SentenceUpdateWorker(localGradients[i]);
+			monitorWorkers[i] = new SentenceMonitorWorker();
+		}
 		timer = new GeneralTimer();
 	}
 	
@@ -139,9 +166,30 @@ public class GraphBootstrappedTrainer {
 		
 		timer.stamp("mstep-end");
 		timer.printIntervalsInMins("mstep-start", "mstep-end");
+		mstepLoad.print();
+		mstepLoad.clear();
+		printSkippedMass();
 		return obj;
 	}
 	
+	/** Reports the marginal mass the M-step expectations left out. */
+	private void printSkippedMass() {
+		double skippedMass = 0;
+		long numPositions = 0;
+		for (SentenceUpdateWorker worker : updateWorkers) {
+			skippedMass += worker.model.skippedMass;
+			numPositions += worker.model.numExpectedPositions;
+			worker.model.skippedMass = 0;
+			worker.model.numExpectedPositions = 0;
+		}
+		if (config.expectationCutoff > 0) {
+			System.out.println(String.format("[mstep]\texpectation cutoff::" +
+					"\t%g\tskipped mass per position::\t%g",
+					config.expectationCutoff,
+					skippedMass / Math.max(1, numPositions)));
+		}
+	}
+	
 	double corpusEStep()
     {
         System.out.println("Corpus E Step");
@@ -178,6 +226,15 @@ public class GraphBootstrappedTrainer {
 		
 		boolean success = false;
 		double prevObjective = Double.POSITIVE_INFINITY;
+		int firstIter = 0;
+		if(!config.resumePath.isEmpty()) {
+			double[] state = loadCheckpoint(config.resumePath);
+			if(state != null) {
+				firstIter = (int) state[0] + 1;
+				prevObjective = state[2];
+				success = state[3] > 0;
+			}
+		}
 		double prevTime = 1e-3 * System.currentTimeMillis();
 		
 		GraphPropagationTester.runPropagation(corpus, graph);
@@ -199,7 +256,8 @@ public class GraphBootstrappedTrainer {
 			model.addToEmpirical(sid, hardDecoding[sid], softEmpiricalCounts);
 		}
 	
-		for(currIter = 0; currIter < config.numEMIters && !success; currIter++) {
+		for(currIter = firstIter; currIter < config.numEMIters && !success;
+				currIter++) {
 			System.out.println("Iteration:: " + currIter);
 		
 			double currObjective = corpusMStep();
@@ -221,28 +279,96 @@ public class GraphBootstrappedTrainer {
 			trainAcc = testModel(corpus.trains);
 			System.out.print("*** Testing:\t");
 			testAcc = testModel(corpus.tests);
+			decodeLoad.print();
+			decodeLoad.clear();
+			if(!config.checkpointPath.isEmpty()) {
+				saveCheckpoint(config.checkpointPath, prevObjective, success);
+			}
 		}
 
 		System.out.println("EM Success:\t" + success);
 	}
 	
+	/**
+	 * Saves theta with the state needed to continue after the current EM
+	 * iteration: the iteration, the step size, the objective, whether EM has
+	 * converged, the results of the last M-step and the E-step state.
+	 */
+	private void saveCheckpoint(String path, double prevObjective,
+			boolean success)
+	{
+		try {
+			Checkpoint.Writer writer = Checkpoint.create(path, config, corpus);
+			try {
+				potentialFunction.writeModel(writer, theta);
+				writer.writeDoubles("trainer-state", new double[] {
+						currIter, prevStepSize, prevObjective, success ? 1 : 0,
+						mstepObjective.objective,
+						mstepObjective.labelLikelihood,
+						mstepObjective.softLikelihood,
+						mstepObjective.parameterRegularizer });
+				constraint.writeCheckpoint(writer);
+				writer.close();
+			} finally {
+				writer.abort();
+			}
+			System.out.println("Saved checkpoint of iteration " + currIter +
+					" to " + path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Restores theta and, if the checkpoint has it, the state written by
+	 * saveCheckpoint(), which is returned. Returns null for a checkpoint that
+	 * only holds parameters.
+	 */
+	private double[] loadCheckpoint(String path)
+	{
+		try {
+			Checkpoint checkpoint = new Checkpoint(path);
+			try {
+				potentialFunction.checkModel(checkpoint);
+				checkpoint.readDoubles("parameters", theta);
+				System.out.println("Resumed parameters from " + path);
+				if(!checkpoint.hasSection("trainer-state")) {
+					return null;
+				}
+				double[] state = new double[8];
+				checkpoint.getDoubles("trainer-state").get(state);
+				prevStepSize = state[1];
+				mstepObjective = new MStepObjective(theta, state[4], state[5],
+						state[6], state[7]);
+				constraint.readCheckpoint(checkpoint, theta);
+				System.out.println("Resuming after EM iteration " +
+						(int) state[0]);
+				return state;
+			} finally {
+				checkpoint.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public double[] getParameters() {
+		return theta;
+	}
+	
 	public double testModel(int[] instanceIDs) {
-		SentenceMonitorThread[] threads =
-				new SentenceMonitorThread[config.numThreads];
 		double tokenAccuracy = .0, sequenceAccuracy = .0, tokenNorm = .0;
 		
+		potentialFunction.cacheScores(scoreCache, theta);
 		try {
-			for(int i = 0; i < threads.length; i++) {
-				threads[i] = new SentenceMonitorThread(i, threads.length,
-						instanceIDs);
-				threads[i].start();
-			}
-			
-			for(int i = 0; i < threads.length; i++) threads[i].join();
-			for(int i = 0; i < threads.length; i++) {
-				tokenAccuracy += threads[i].numCorrectTokens;
-				sequenceAccuracy += threads[i].numCorrectSequences;
-				tokenNorm += threads[i].numTokens;
+			monitorScheduler = new SentenceScheduler(corpus, fiter, 2, instanceIDs);
+			pool.runAll(monitorWorkers, decodeLoad);
+			for(SentenceMonitorWorker worker : monitorWorkers) {
+				tokenAccuracy += worker.numCorrectTokens;
+				sequenceAccuracy += worker.numCorrectSequences;
+				tokenNorm += worker.numTokens;
 			}
 			
 		} catch (InterruptedException e) {
@@ -264,20 +390,16 @@ public class GraphBootstrappedTrainer {
 	}
 
 	public double testAndAnalyze(int[] instanceIDs, String outputFileLabel) {
-		SentenceMonitorThread[] threads = new SentenceMonitorThread[config.numThreads];
 		double tokenAccuracy = .0, sequenceAccuracy = .0, tokenNorm = .0;
 		doAnalysis = true;
+		potentialFunction.cacheScores(scoreCache, theta);
 		try {
-			for(int i = 0; i < threads.length; i++) {
-				threads[i] = new SentenceMonitorThread(i, threads.length, instanceIDs);
-				threads[i].start();
-			}
-			
-			for(int i = 0; i < threads.length; i++) threads[i].join();
-			for(int i = 0; i < threads.length; i++) {
-				tokenAccuracy += threads[i].numCorrectTokens;
-				sequenceAccuracy += threads[i].numCorrectSequences;
-				tokenNorm += threads[i].numTokens;
+			monitorScheduler = new SentenceScheduler(corpus, fiter, 2, instanceIDs);
+			pool.runAll(monitorWorkers, decodeLoad);
+			for(SentenceMonitorWorker worker : monitorWorkers) {
+				tokenAccuracy += worker.numCorrectTokens;
+				sequenceAccuracy += worker.numCorrectSequences;
+				tokenNorm += worker.numTokens;
 			}	
 			
 			tokenAccuracy /= tokenNorm;
@@ -299,7 +421,6 @@ public class GraphBootstrappedTrainer {
 		protected double objective, labelLikelihood, softLikelihood, parameterRegularizer;
 		int nrFeatures;
 		boolean transductive;
-		SentenceUpdateThread[] threads;
 		int numThetaUpdates;
 	
 		public MStepObjective(double[] parameters, boolean transductive) 
@@ -309,12 +430,25 @@ public class GraphBootstrappedTrainer {
 			this.gradient = new double[nrFeatures];		
 			this.parameters = parameters;
 			
-			this.threads = new SentenceUpdateThread[config.numThreads];
 			this.numThetaUpdates = 0;
 			setParameters(parameters);
 			
 		}
 		
+		/** Holds the results of an M-step restored from a checkpoint. */
+		public MStepObjective(double[] parameters, double objective,
+				double labelLikelihood, double softLikelihood,
+				double parameterRegularizer)
+		{
+			this.nrFeatures = parameters.length;
+			this.gradient = new double[nrFeatures];
+			this.parameters = parameters;
+			this.objective = objective;
+			this.labelLikelihood = labelLikelihood;
+			this.softLikelihood = softLikelihood;
+			this.parameterRegularizer = parameterRegularizer;
+		}
+		
 		public void updateObjectiveAndGradient()
 		{
 			double gpSquared = config.gaussianPrior * config.gaussianPrior;
@@ -330,28 +464,20 @@ public class GraphBootstrappedTrainer {
 			labelLikelihood = 0;
 			softLikelihood = 0;
 			
+			potentialFunction.cacheScores(scoreCache, parameters);
 			try {
-				for(int i = 0; i < config.numThreads; i++) {
-					threads[i] = new SentenceUpdateThread(i, threads.length, corpus.numInstances);
-					threads[i].start();
-				}
-				
-				for(int i = 0; i < config.numThreads; i++)	threads[i].join();
-				
+				updateScheduler.reset();
+				pool.runAll(updateWorkers, mstepLoad);
+				SparseAccumulator.reduce(localGradients, gradient, pool);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
 			
-			for(int i = 0; i < config.numThreads; i++) {
-				for(int j = 0; j < gradient.length; j++)
-					gradient[j] += threads[i].localGradient[j];
-				
-				labelLikelihood += threads[i].localLabelLikelihood;
-				softLikelihood += threads[i].localSoftLikelihood;
-				objective += labeledStrength * threads[i].localLabelLikelihood + 
-								threads[i].localSoftLikelihood;
-				
-				threads[i] = null;
+			for(SentenceUpdateWorker worker : updateWorkers) {
+				labelLikelihood += worker.localLabelLikelihood;
+				softLikelihood += worker.localSoftLikelihood;
+				objective += labeledStrength * worker.localLabelLikelihood + 
+								worker.localSoftLikelihood;
 			}
 
 			if(updateCalls % 10 == 0) {
@@ -383,66 +509,62 @@ public class GraphBootstrappedTrainer {
 		public String toString() {
 			return "ocr discriminative model objective";
 		}
+	}
+	
+	private class SentenceUpdateWorker implements Runnable
+	{
+		private SparseAccumulator localGradient;
+		private double localLabelLikelihood, localSoftLikelihood;
+		private SecondOrderFactorGraph model;
+		
+		public SentenceUpdateWorker(SparseAccumulator localGradient) {
+			this.localGradient = localGradient;
+			model = new SecondOrderFactorGraph(corpus,	potentialFunction, fiter);
+			model.expectationCutoff = config.expectationCutoff;
+			model.scaledMarginals = config.scaledMarginals;
+		}
 		
-		private class SentenceUpdateThread extends Thread 
+		public void run()
 		{
-			@SuppressWarnings("unused")
-			private final int threadID, startJobID, endJobID;
-			private double[] localGradient;
-			private double localLabelLikelihood, localSoftLikelihood;
-			private SecondOrderFactorGraph model;
-			
-			public SentenceUpdateThread(int myID, int numThreads, int numJobs) {
-				threadID = myID;
-				int batchSize = numJobs / numThreads;
-				startJobID = myID * batchSize;
-				endJobID = (myID < numThreads - 1 ? startJobID + batchSize : numJobs);
-				
-				localGradient = new double[theta.length];
-				model = new SecondOrderFactorGraph(corpus,	potentialFunction, fiter);
-			}
+			localLabelLikelihood = 0;
+			localSoftLikelihood = 0;
+			localGradient.clear();
 			
-			public void run()
-			{
-				localLabelLikelihood = 0;
-				localSoftLikelihood = 0;
-				Arrays.fill(localGradient, 0.0);
-				
-				for(int sid = startJobID; sid < endJobID; sid ++) {
-					AbstractSequence instance = corpus.getInstance(sid);
-					int length = instance.length;
-			
-					if (instance.isLabeled) {
-						model.computeScores(instance, parameters, config.backoff);
-						model.computeMarginals();	
-						model.addToExpectation(sid, localGradient, labeledStrength);
-						localLabelLikelihood += model.logNorm;
-						
-						for (int i = 0; i <= length; i++) {
-							int s = (i == length ? corpus.finalState : instance.tags[i]);
-							int sp = (i == 0 ? corpus.initialState : instance.tags[i-1]);
-							int spp = (i == 0 ? corpus.initialStateSO : (i == 1 ? corpus.initialState : instance.tags[i-2]));
-							localLabelLikelihood -= model.edgeScore[i][s][sp][spp] + model.nodeScore[i][s];
-						}						
-					}
-					else {
-						model.computeScores(instance, parameters, config.backoff);
-						model.computeMarginals();	
-						model.addToExpectation(sid, localGradient, 1.0);
-						localSoftLikelihood += model.logNorm;
+			for (int sid; (sid = updateScheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				int length = instance.length;
+		
+				if (instance.isLabeled) {
+					model.computeScores(instance, scoreCache, config.backoff);
+					model.computeMarginals();	
+					model.addToExpectation(sid, localGradient, labeledStrength);
+					localLabelLikelihood += model.logNorm;
 					
-						int[] decoded = hardDecoding[sid];
-						for(int i = 0; i <= length; i++) {
-							int s = (i == length ? corpus.finalState : decoded[i]);
-							int sp = (i == 0 ? corpus.initialState : decoded[i-1]);
-							int spp = (i == 0 ? corpus.initialStateSO : (i == 1 ? corpus.initialState : decoded[i-2]));
-							localSoftLikelihood -= model.edgeScore[i][s][sp][spp] + model.nodeScore[i][s];
-						}
-					}	
+					for (int i = 0; i <= length; i++) {
+						int s = (i == length ? corpus.finalState : instance.tags[i]);
+						int sp = (i == 0 ? corpus.initialState : instance.tags[i-1]);
+						int spp = (i == 0 ? corpus.initialStateSO : (i == 1 ? corpus.initialState : instance.tags[i-2]));
+						localLabelLikelihood -= model.getEdgeScore(i, s, sp, spp) +
+								model.getNodeScore(i, s);
+					}						
 				}
+				else {
+					model.computeScores(instance, scoreCache, config.backoff);
+					model.computeMarginals();	
+					model.addToExpectation(sid, localGradient, 1.0);
+					localSoftLikelihood += model.logNorm;
+				
+					int[] decoded = hardDecoding[sid];
+					for(int i = 0; i <= length; i++) {
+						int s = (i == length ? corpus.finalState : decoded[i]);
+						int sp = (i == 0 ? corpus.initialState : decoded[i-1]);
+						int spp = (i == 0 ? corpus.initialStateSO : (i == 1 ? corpus.initialState : decoded[i-2]));
+						localSoftLikelihood -= model.getEdgeScore(i, s, sp, spp) +
+								model.getNodeScore(i, s);
+					}
+				}	
 			}
 		}
-
 	}
 	
 	synchronized void printPredictedIntance(AbstractCorpus corpus,
@@ -461,23 +583,15 @@ public class GraphBootstrappedTrainer {
 		System.out.println("\n");
 	}
 	
-	private class SentenceMonitorThread extends Thread 
+	private class SentenceMonitorWorker implements Runnable
 	{
-		@SuppressWarnings("unused")
-		private final int threadID, startJobID, endJobID;
-		private final int[] jobs;
 		private SecondOrderFactorGraph model;
 		public double numCorrectTokens, numCorrectSequences, numTokens;
 		
-		public SentenceMonitorThread(int threadID, int numThreads, int[] jobs)
+		public SentenceMonitorWorker()
 		{
-			this.threadID = threadID;
-			this.jobs = jobs;
-			int batchSize = jobs.length / numThreads;
-			startJobID = threadID * batchSize;
-			endJobID = (threadID < numThreads - 1 ? startJobID + batchSize : jobs.length);
 			model = new SecondOrderFactorGraph(corpus,	potentialFunction, fiter);
-			
+			model.scaledMarginals = config.scaledMarginals;
 		}
 		
 		public void run()
@@ -486,12 +600,16 @@ public class GraphBootstrappedTrainer {
 			numCorrectSequences = 0;
 			numTokens = 0;
 			
-			for(int sid = startJobID; sid < endJobID; sid ++) {
-				AbstractSequence instance = corpus.getInstance(jobs[sid]);
-				model.computeScores(instance, theta, config.backoff);
-				model.computeMarginals();
-				
-				double acc = model.decodeAndEvaluate(instance.tags);
+			for (int sid; (sid = monitorScheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				model.computeScores(instance, scoreCache, config.backoff);
+				if (config.viterbiDecoding) {
+					model.decodeViterbi();
+				} else {
+					model.computeMarginals();
+					model.decodePosterior();
+				}
+				double acc = model.evaluate(instance.tags);
 				numTokens += instance.length;
 				numCorrectTokens += acc;
 				numCorrectSequences += (acc == instance.length ? 1 : 0);
@@ -1,5 +1,6 @@
 package trainers;
 
+import java.io.IOException;
 import java.util.Arrays;
 import analysis.GeneralTimer;
 import models.AbstractFactorIterator;
@@ -15,9 +16,15 @@ import optimization.linesearch.LineSearchMethod;
 import optimization.linesearch.WolfRuleLineSearch;
 import optimization.stopCriteria.CompositeStopingCriteria;
 import optimization.stopCriteria.NormalizedValueDifference;
+import parallel.SentenceScheduler;
+import parallel.SparseAccumulator;
+import parallel.WorkerLoad;
+import parallel.WorkerPool;
 import data.AbstractCorpus;
 import data.AbstractSequence;
+import data.Checkpoint;
 import data.SparseSimilarityGraph;
+import features.ScoreCache;
 import features.SecondOrderPotentialFunction;
 
 public class SecondOrderEMTrainer {
@@ -28,9 +35,16 @@ public class SecondOrderEMTrainer {
 	SparseSimilarityGraph graph;
 	SecondOrderTypeEG constraint;
 	MStepObjective mstepObjective;
+	WorkerPool pool;
+	SentenceUpdateWorker[] updateWorkers;
+	SparseAccumulator[] localGradients;
+	SentenceMonitorWorker[] monitorWorkers;
+	SentenceScheduler updateScheduler, monitorScheduler;
+	WorkerLoad mstepLoad, decodeLoad;
 	
 	int numParameters;
 	double[] theta;
+	ScoreCache scoreCache;
 	double[] empiricalCounts, expectedCounts, softEmpiricalCounts;
 
 	Config config;
@@ -61,6 +75,7 @@ public class SecondOrderEMTrainer {
 	private void initializeModel() {
 		numParameters = potentialFunction.getNumFeatures();
 		theta = new double[numParameters];
+		scoreCache = potentialFunction.createScoreCache();
 		empiricalCounts = new double[numParameters];
 		expectedCounts = new double[numParameters];
 		softEmpiricalCounts = new double[numParameters];
@@ -77,6 +92,18 @@ public class SecondOrderEMTrainer {
 				model.addToEmpirical(tid, instance.tags, empiricalCounts);
 			}
 		}
+		pool = WorkerPool.getSharedPool(config.numThreads);
+		updateScheduler = new SentenceScheduler(corpus, fiter, 2);
+		mstepLoad = new WorkerLoad("mstep");
+		decodeLoad = new WorkerLoad("decode");
+		updateWorkers = new SentenceUpdateWorker[config.numThreads];
+		localGradients = new SparseAccumulator[config.numThreads];
+		monitorWorkers = new SentenceMonitorWorker[config.numThreads];
+		for (int i = 0; i < config.numThreads; i++) {
+			localGradients[i] = new SparseAccumulator(numParameters);
+			updateWorkers[i] = new SentenceUpdateWorker(localGradients[i]);
+			monitorWorkers[i] = new SentenceMonitorWorker();
+		}
 		timer = new GeneralTimer();
 	}
 	
@@ -113,9 +140,30 @@ public class SecondOrderEMTrainer {
 		
 		timer.stamp("mstep-end");
 		timer.printIntervalsInMins("mstep-start", "mstep-end");
+		mstepLoad.print();
+		mstepLoad.clear();
+		printSkippedMass();
 		return obj;
 	}
 	
+	/** Reports the marginal mass the M-step expectations left out. */
+	private void printSkippedMass() {
+		double skippedMass = 0;
+		long numPositions = 0;
+		for (SentenceUpdateWorker worker : updateWorkers) {
+			skippedMass += worker.model.skippedMass;
+			numPositions += worker.model.numExpectedPositions;
+			worker.model.skippedMass = 0;
+			worker.model.numExpectedPositions = 0;
+		}
+		if (config.expectationCutoff > 0) {
+			System.out.println(String.format("[mstep]\texpectation cutoff::" +
+					"\t%g\tskipped mass per position::\t%g",
+					config.expectationCutoff,
+					skippedMass / Math.max(1, numPositions)));
+		}
+	}
+	
 	private double corpusEStep() {
 		System.out.println("Corpus E Step");
 		timer.stamp("estep-start");
@@ -146,9 +194,18 @@ public class SecondOrderEMTrainer {
 		transductive = false;
 		boolean success = false;
 		double prevObjective = Double.POSITIVE_INFINITY;
+		int firstIter = 0;
+		if (!config.resumePath.isEmpty()) {
+			double[] state = loadCheckpoint(config.resumePath);
+			if (state != null) {
+				firstIter = (int) state[0] + 1;
+				prevObjective = state[2];
+				success = state[3] > 0;
+			}
+		}
 		double prevTime = 1e-6 * System.currentTimeMillis();
 		
-		for (currIter = 0; currIter < config.numEMIters && !success;
+		for (currIter = firstIter; currIter < config.numEMIters && !success;
 				currIter++) {
 			System.out.println("Iteration:: " + currIter);
 			
@@ -175,6 +232,11 @@ public class SecondOrderEMTrainer {
 			trainAcc = testModel(corpus.trains);
 			System.out.print("*** Testing:\t");
 			testAcc = testModel(corpus.tests);
+			decodeLoad.print();
+			decodeLoad.clear();
+			if (!config.checkpointPath.isEmpty()) {
+				saveCheckpoint(config.checkpointPath, prevObjective, success);
+			}
 
 			if (currIter == 0) {
 				System.out.print("*** CRF Baseline:\t");
@@ -184,23 +246,85 @@ public class SecondOrderEMTrainer {
 		System.out.println("EM Success:\t" + success);
 	}
 	
+	/**
+	 * Saves theta with the state needed to continue after the current EM
+	 * iteration: the iteration, the step size, the objective, whether EM has
+	 * converged, the results of the last M-step and the E-step state.
+	 */
+	private void saveCheckpoint(String path, double prevObjective,
+			boolean success) {
+		try {
+			Checkpoint.Writer writer = Checkpoint.create(path, config, corpus);
+			try {
+				potentialFunction.writeModel(writer, theta);
+				writer.writeDoubles("trainer-state", new double[] {
+						currIter, prevStepSize, prevObjective, success ? 1 : 0,
+						mstepObjective.objective,
+						mstepObjective.labelLikelihood,
+						mstepObjective.softLikelihood,
+						mstepObjective.parameterRegularizer });
+				constraint.writeCheckpoint(writer);
+				writer.close();
+			} finally {
+				writer.abort();
+			}
+			System.out.println("Saved checkpoint of iteration " + currIter +
+					" to " + path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Restores theta and, if the checkpoint has it, the state written by
+	 * saveCheckpoint(), which is returned. Returns null for a checkpoint that
+	 * only holds parameters.
+	 */
+	private double[] loadCheckpoint(String path) {
+		try {
+			Checkpoint checkpoint = new Checkpoint(path);
+			try {
+				potentialFunction.checkModel(checkpoint);
+				checkpoint.readDoubles("parameters", theta);
+				System.out.println("Resumed parameters from " + path);
+				if (!checkpoint.hasSection("trainer-state")) {
+					return null;
+				}
+				double[] state = new double[8];
+				checkpoint.getDoubles("trainer-state").get(state);
+				prevStepSize = state[1];
+				mstepObjective = new MStepObjective(theta, state[4], state[5],
+						state[6], state[7]);
+				constraint.readCheckpoint(checkpoint, theta);
+				System.out.println("Resuming after EM iteration " +
+						(int) state[0]);
+				return state;
+			} finally {
+				checkpoint.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public double[] getParameters() {
+		return theta;
+	}
+	
 	public double testModel(int[] instanceIDs) {
-		SentenceMonitorThread[] threads =
-				new SentenceMonitorThread[config.numThreads];
 		double tokenAccuracy = .0, sequenceAccuracy = .0, tokenNorm = .0;
 
+		potentialFunction.cacheScores(scoreCache, theta);
 		try {
-			for (int i = 0; i < threads.length; i++) {
-				threads[i] = new SentenceMonitorThread(i, threads.length,
-						instanceIDs);
-				threads[i].start();
-			}
-			
-			for (int i = 0; i < threads.length; i++) threads[i].join();
-			for (int i = 0; i < threads.length; i++) {
-				tokenAccuracy += threads[i].numCorrectTokens;
-				sequenceAccuracy += threads[i].numCorrectSequences;
-				tokenNorm += threads[i].numTokens;
+			monitorScheduler = new SentenceScheduler(corpus, fiter, 2,
+					instanceIDs);
+			pool.runAll(monitorWorkers, decodeLoad);
+			for (SentenceMonitorWorker worker : monitorWorkers) {
+				tokenAccuracy += worker.numCorrectTokens;
+				sequenceAccuracy += worker.numCorrectSequences;
+				tokenNorm += worker.numTokens;
 			}	
 		} catch (InterruptedException e) { }
 		
@@ -214,23 +338,17 @@ public class SecondOrderEMTrainer {
 	}
 	
 	public double testAndAnalyze(int[] instanceIDs, String outputFileLabel) {
-		SentenceMonitorThread[] threads =
-				new SentenceMonitorThread[config.numThreads];
 		double tokenAccuracy = .0, sequenceAccuracy = .0, tokenNorm = .0;
 
+		potentialFunction.cacheScores(scoreCache, theta);
 		try {
-			for (int i = 0; i < threads.length; i++) {
-				threads[i] = new SentenceMonitorThread(i, threads.length,
-						instanceIDs);
-				threads[i].start();
-			}
-			for (int i = 0; i < threads.length; i++) {
-				threads[i].join();
-			}
-			for (int i = 0; i < threads.length; i++) {
-				tokenAccuracy += threads[i].numCorrectTokens;
-				sequenceAccuracy += threads[i].numCorrectSequences;
-				tokenNorm += threads[i].numTokens;
+			monitorScheduler = new SentenceScheduler(corpus, fiter, 2,
+					instanceIDs);
+			pool.runAll(monitorWorkers, decodeLoad);
+			for (SentenceMonitorWorker worker : monitorWorkers) {
+				tokenAccuracy += worker.numCorrectTokens;
+				sequenceAccuracy += worker.numCorrectSequences;
+				tokenNorm += worker.numTokens;
 			}	
 			tokenAccuracy /= tokenNorm;
 			System.out.print(String.format("token acc.\t%.3f%%",
@@ -253,7 +371,6 @@ public class SecondOrderEMTrainer {
 			parameterRegularizer;
 		int nrFeatures;
 		boolean transductive;
-		SentenceUpdateThread[] threads;
 		int numThetaUpdates;
 		double gpSquared;
 		double[] gradientInit;
@@ -272,11 +389,23 @@ public class SecondOrderEMTrainer {
 					gradientInit[i] -= constraint.softEmpiricalCounts[i];
 				}
 			}
-			this.threads = new SentenceUpdateThread[config.numThreads];
 			this.numThetaUpdates = 0;
 			setParameters(parameters);
 		}
 		
+		/** Holds the results of an M-step restored from a checkpoint. */
+		public MStepObjective(double[] parameters, double objective,
+				double labelLikelihood, double softLikelihood,
+				double parameterRegularizer) {
+			this.nrFeatures = parameters.length;
+			this.gradient = new double[nrFeatures];
+			this.parameters = parameters;
+			this.objective = objective;
+			this.labelLikelihood = labelLikelihood;
+			this.softLikelihood = softLikelihood;
+			this.parameterRegularizer = parameterRegularizer;
+		}
+		
 		public void updateObjectiveAndGradient() { 
 			parameterRegularizer = twoNormSquared(parameters) /
 					(2.0 * gpSquared); 
@@ -291,23 +420,14 @@ public class SecondOrderEMTrainer {
 						constraint.softEmpiricalCounts[i];
 			}
 			
+			potentialFunction.cacheScores(scoreCache, parameters);
 			try {
-				for (int i = 0; i < config.numThreads; i++) {
-					threads[i] = new SentenceUpdateThread(i, threads.length,
-							corpus.numInstances);
-					threads[i].start();
-				}
-				for (int i = 0; i < config.numThreads; i++) {
-					threads[i].join();
-				}
-			
-				for (int i = 0; i < config.numThreads; i++) {
-					for (int j = 0; j < gradient.length; j++) { 
-						gradient[j] += threads[i].localGradient[j];
-					}
-					labelLikelihood += threads[i].localLabelLikelihood;
-					softLikelihood += threads[i].localSoftLikelihood;
-					threads[i] = null;
+				updateScheduler.reset();
+				pool.runAll(updateWorkers, mstepLoad);
+				SparseAccumulator.reduce(localGradients, gradient, pool);
+				for (SentenceUpdateWorker worker : updateWorkers) {
+					labelLikelihood += worker.localLabelLikelihood;
+					softLikelihood += worker.localSoftLikelihood;
 				}
 			} catch (InterruptedException e) {
 			}
@@ -350,48 +470,42 @@ public class SecondOrderEMTrainer {
 		public String toString() {
 			return "ocr discriminative model objective";
 		}
+	}
+	
+	private class SentenceUpdateWorker implements Runnable {
+		private SparseAccumulator localGradient;
+		private double localLabelLikelihood, localSoftLikelihood;
+		private SecondOrderFactorGraph model;
 		
-		private class SentenceUpdateThread extends Thread {
-			@SuppressWarnings("unused")
-			private final int threadID, startJobID, endJobID;	
-			private double[] localGradient;
-			private double localLabelLikelihood, localSoftLikelihood;
-			private SecondOrderFactorGraph model;
-			
-			public SentenceUpdateThread(int myID, int numThreads, int numJobs) {
-				threadID = myID;
-				int batchSize = numJobs / numThreads;
-				startJobID = myID * batchSize;
-				endJobID = (myID < numThreads - 1 ?
-						startJobID + batchSize : numJobs);
-
-				localGradient = new double[theta.length];
-				model = new SecondOrderFactorGraph(corpus,	potentialFunction,
-						fiter);
-			}
+		public SentenceUpdateWorker(SparseAccumulator localGradient) {
+			this.localGradient = localGradient;
+			model = new SecondOrderFactorGraph(corpus,	potentialFunction,
+					fiter);
+			model.expectationCutoff = config.expectationCutoff;
+			model.scaledMarginals = config.scaledMarginals;
+		}
+		
+		public void run() {
+			localLabelLikelihood = 0;
+			localSoftLikelihood = 0;
+			localGradient.clear();
 			
-			public void run() {
-				localLabelLikelihood = 0;
-				localSoftLikelihood = 0;
-				Arrays.fill(localGradient, 0.0);
-				
-				for (int sid = startJobID; sid < endJobID; sid ++) {
-					AbstractSequence instance = corpus.getInstance(sid);
-					if (!instance.isLabeled && !transductive) {
-						continue;
-					}
-					model.computeScores(instance, parameters, 0.0);
-					model.computeMarginals();
-					if (instance.isLabeled) {
-						model.addToExpectation(sid, localGradient,
-								config.labelStrength);
-						localLabelLikelihood += model.logNorm;			
-					}
-					else {	
-						model.addToExpectation(sid, localGradient, 1.0);
-						localSoftLikelihood += model.logNorm;
-					}	
+			for (int sid; (sid = updateScheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				if (!instance.isLabeled && !transductive) {
+					continue;
 				}
+				model.computeScores(instance, scoreCache, 0.0);
+				model.computeMarginals();
+				if (instance.isLabeled) {
+					model.addToExpectation(sid, localGradient,
+							config.labelStrength);
+					localLabelLikelihood += model.logNorm;			
+				}
+				else {	
+					model.addToExpectation(sid, localGradient, 1.0);
+					localSoftLikelihood += model.logNorm;
+				}	
 			}
 		}
 	}
@@ -412,22 +526,14 @@ public class SecondOrderEMTrainer {
 		System.out.println("\n");
 	}
 	
-	private class SentenceMonitorThread extends Thread {
-		@SuppressWarnings("unused")
-		private final int threadID, startJobID, endJobID;
-		private final int[] jobs;
+	private class SentenceMonitorWorker implements Runnable {
 		private SecondOrderFactorGraph model;
 		public double numCorrectTokens, numCorrectSequences, numTokens;
 		
-		public SentenceMonitorThread(int threadID, int numThreads, int[] jobs) {
-			this.threadID = threadID;
-			this.jobs = jobs;
-			int batchSize = jobs.length / numThreads;
-			startJobID = threadID * batchSize;
-			endJobID = (threadID < numThreads - 1 ?
-					startJobID + batchSize :jobs.length);
+		public SentenceMonitorWorker() {
 			model = new SecondOrderFactorGraph(corpus,	potentialFunction,
 					fiter);
+			model.scaledMarginals = config.scaledMarginals;
 		}
 		
 		public void run() {
@@ -435,12 +541,16 @@ public class SecondOrderEMTrainer {
 			numCorrectSequences = 0;
 			numTokens = 0;
 			
-			for(int sid = startJobID; sid < endJobID; sid ++) {
-				AbstractSequence instance = corpus.getInstance(jobs[sid]);
-				model.computeScores(instance, theta, config.backoff);
-				model.computeMarginals();
-				
-				double acc = model.decodeAndEvaluate(instance.tags);
+			for (int sid; (sid = monitorScheduler.next()) >= 0; ) {
+				AbstractSequence instance = corpus.getInstance(sid);
+				model.computeScores(instance, scoreCache, config.backoff);
+				if (config.viterbiDecoding) {
+					model.decodeViterbi();
+				} else {
+					model.computeMarginals();
+					model.decodePosterior();
+				}
+				double acc = model.evaluate(instance.tags);
 				numTokens += instance.length;
 				numCorrectTokens += acc;
 				numCorrectSequences += (acc == instance.length ? 1 : 0);